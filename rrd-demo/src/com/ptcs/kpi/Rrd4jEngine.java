@@ -0,0 +1,245 @@
+package com.ptcs.kpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+import org.rrd4j.core.FetchData;
+import org.rrd4j.core.RrdBackendFactory;
+import org.rrd4j.core.RrdDb;
+import org.rrd4j.core.RrdDef;
+import org.rrd4j.core.Sample;
+
+/**
+ * rrd4j存储引擎
+ *
+ * 直接调用rrd4j API, 不经过RrdCommander拼接和解析命令. 最近使用的maxOpen个RrdDb保持打开,
+ * 超出时关闭最久未使用的; 正在使用的RrdDb延迟到使用结束后关闭, 关闭前再次打开同一文件时
+ * 直接复用它, 同一文件不会同时有两个RrdDb. 路径经File规范化后作为键,
+ * 冷数据归档遍历目录得到的路径与写入路径对应同一个RrdDb. rrd4j对单个RrdDb的读写
+ * 已加锁, 不同文件可以并发读写.
+ * 后端由rrd4j工厂名选择: FILE(RandomAccessFile), NIO(内存映射, 需要JDK 8及以下),
+ * MEMORY(数据只在内存中, 用于测试和基准对比).
+ */
+public class Rrd4jEngine implements RrdEngine {
+
+    /**
+     * 打开的RrdDb及其使用计数
+     */
+    private static class Handle {
+        final String path;
+        final RrdDb db;
+        int refs;
+        boolean evicted;
+
+        Handle(String path, RrdDb db) {
+            this.path = path;
+            this.db = db;
+        }
+    }
+
+    private final String name;
+    private final RrdBackendFactory factory;
+    private final boolean memory;
+    private final int maxOpen;
+    private final Map<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+    // 已淘汰但仍在使用、尚未关闭的RrdDb
+    private final Map<String, Handle> evictedInUse = new HashMap<String, Handle>();
+    private final Set<String> created = new HashSet<String>();
+
+    /**
+     * @param name       -- 引擎名称
+     * @param factoryName-- rrd4j后端工厂名: FILE/NIO/MEMORY
+     * @param maxOpen    -- 最多同时打开的文件数
+     */
+    public Rrd4jEngine(String name, String factoryName, int maxOpen) {
+        this.name = name;
+        this.factory = RrdBackendFactory.getFactory(factoryName);
+        this.memory = "MEMORY".equals(factoryName);
+        this.maxOpen = Math.max(maxOpen, 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapabilities() {
+        return CAP_BATCH_UPDATE | CAP_CONCURRENT_READ | (memory ? 0 : CAP_PERSISTENT);
+    }
+
+    public boolean exists(String path) {
+        path = new File(path).getPath();
+        if (memory) {
+            synchronized (handles) {
+                return created.contains(path);
+            }
+        }
+        return new File(path).exists();
+    }
+
+    public void create(String path, long start, long step, String[] dsNames, long rows) throws RrdException {
+        path = new File(path).getPath();
+        RrdDef def = new RrdDef(path, start, step);
+        for (String dsName : dsNames) {
+            def.addDatasource(dsName, DsType.GAUGE, step * 3 / 2, Double.NaN, Double.NaN);
+        }
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, (int) rows);
+        synchronized (handles) {
+            // 重建文件时旧的RrdDb不再复用, 使用结束后关闭
+            Handle old = handles.remove(path);
+            if (old == null) {
+                old = evictedInUse.remove(path);
+            }
+            if (old != null) {
+                old.evicted = true;
+                if (old.refs == 0) {
+                    closeDb(old.db);
+                }
+            }
+            try {
+                Handle handle = new Handle(path, new RrdDb(def, factory));
+                handles.put(path, handle);
+                created.add(path);
+                trim();
+            } catch (IOException e) {
+                throw new RrdException("create " + path + " failed: " + e);
+            }
+        }
+    }
+
+    public void update(String path, long[] times, double[] values, int count) throws RrdException {
+        Handle handle = acquire(path);
+        try {
+            int dsCount = handle.db.getDsCount();
+            double[] row = new double[dsCount];
+            Sample sample = handle.db.createSample();
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(values, i * dsCount, row, 0, dsCount);
+                sample.setTime(times[i]);
+                sample.setValues(row);
+                sample.update();
+            }
+        } catch (IOException e) {
+            throw new RrdException("update " + path + " failed: " + e);
+        } catch (IllegalArgumentException e) {
+            throw new RrdException("update " + path + " failed: " + e.getMessage());
+        } finally {
+            release(handle);
+        }
+    }
+
+    public RrdRows fetch(String path, long start, long end, long resolution) throws RrdException {
+        Handle handle = acquire(path);
+        try {
+            FetchData data = handle.db.createFetchRequest(ConsolFun.AVERAGE, start, end, resolution).fetchData();
+            long[] timestamps = data.getTimestamps();
+            double[][] values = data.getValues();
+            RrdRows rows = new RrdRows(values.length, timestamps.length);
+            double[] row = new double[values.length];
+            for (int i = 0; i < timestamps.length; i++) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = values[j][i];
+                }
+                rows.add(timestamps[i], row, 0);
+            }
+            return rows;
+        } catch (IOException e) {
+            throw new RrdException("fetch " + path + " failed: " + e);
+        } finally {
+            release(handle);
+        }
+    }
+
+    public long last(String path) throws RrdException {
+        Handle handle = acquire(path);
+        try {
+            return handle.db.getLastUpdateTime();
+        } catch (IOException e) {
+            throw new RrdException("last " + path + " failed: " + e);
+        } finally {
+            release(handle);
+        }
+    }
+
+    public void close() {
+        synchronized (handles) {
+            for (Handle handle : handles.values()) {
+                evict(handle);
+            }
+            handles.clear();
+            evictedInUse.clear();
+        }
+    }
+
+    private Handle acquire(String path) throws RrdException {
+        path = new File(path).getPath();
+        synchronized (handles) {
+            Handle handle = handles.get(path);
+            if (handle == null) {
+                handle = evictedInUse.remove(path);
+                if (handle != null) {
+                    handle.evicted = false;
+                } else {
+                    if (memory && !created.contains(path)) {
+                        throw new RrdException(path + " does not exist");
+                    }
+                    try {
+                        handle = new Handle(path, new RrdDb(path, factory));
+                    } catch (IOException e) {
+                        throw new RrdException("open " + path + " failed: " + e);
+                    }
+                }
+                handles.put(path, handle);
+                trim();
+            }
+            handle.refs++;
+            return handle;
+        }
+    }
+
+    private void release(Handle handle) {
+        synchronized (handles) {
+            handle.refs--;
+            if (handle.evicted && handle.refs == 0) {
+                if (evictedInUse.get(handle.path) == handle) {
+                    evictedInUse.remove(handle.path);
+                }
+                closeDb(handle.db);
+            }
+        }
+    }
+
+    private void trim() {
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            Handle handle = it.next();
+            it.remove();
+            evict(handle);
+        }
+    }
+
+    private void evict(Handle handle) {
+        handle.evicted = true;
+        if (handle.refs == 0) {
+            closeDb(handle.db);
+        } else {
+            evictedInUse.put(handle.path, handle);
+        }
+    }
+
+    private static void closeDb(RrdDb db) {
+        try {
+            db.close();
+        } catch (Throwable e) {
+            // 淘汰发生在读写线程中, 关闭失败(如NIO后端在JDK 9+抛出的Error)不能影响本次操作
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.ptcs.kpi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+/**
+ * RRD冷数据归档
+ *
+ * 把RRD中较旧的数据压缩保存到同目录下的.cold文件, RRD本身只需要保留较短的时间范围.
+ * 文件由文件头和若干数据块组成, 每个数据块最多BLOCK_ROWS行:
+ *   文件头: MAGIC, VERSION, 数据源个数
+ *   数据块: 首行时间, 末行时间, 行数, 字节数, 压缩数据
+ * 行数为0的块是归档水位标记, 首/末行时间为已归档到的时间, 只出现在文件末尾, 下次追加时
+ * 被覆盖. 全部为空值的RRD也因此记录归档进度, 不会每次都从头读取.
+ * 超过保留时间的数据以块为单位从文件开头删除, 最后一个块(含水位标记)总是保留.
+ * 块头构成块索引, 读取时跳过不在查询范围内的块. 块内时间戳按差值的差值(delta-of-delta)编码,
+ * 每个数据源的值与前一个值异或(XOR)后只保存有效位, 规则的时间戳和重复值(0, NaN)各只占1位.
+ */
+public class RrdColdArchive {
+
+    public static final String SUFFIX = ".cold";
+
+    private static final int MAGIC = 0x52524443;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int BLOCK_HEADER_SIZE = 24;
+    private static final int BLOCK_ROWS = 720;
+    private static final long STEP = 60;
+
+    /**
+     * @Title: lastTime
+     * @Description: 获取已归档到的时间(最后一行或水位标记的时间)
+     * @param @param path -- 归档文件
+     * @return 时间戳[s], 文件不存在或为空时返回Long.MIN_VALUE
+     */
+    public static long lastTime(String path) throws IOException {
+        if (!new File(path).exists()) {
+            return Long.MIN_VALUE;
+        }
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            return scan(raf)[1];
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @Title: append
+     * @Description: 追加数据到归档, 时间必须晚于已归档到的时间
+     * @param @param path -- 归档文件
+     * @param @param rows -- 待追加的数据, 可以为空
+     * @param @param upTo -- 本次已归档到的时间, 晚于最后一行时写入水位标记
+     */
+    public static void append(String path, RrdRows rows, long upTo) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            long[] tail;
+            if (raf.length() == 0) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(rows.getDsCount());
+                tail = new long[] {HEADER_SIZE, Long.MIN_VALUE};
+            } else {
+                tail = scan(raf);
+                if (raf.readInt() != rows.getDsCount()) {
+                    throw new IOException("data source count mismatch in " + path);
+                }
+            }
+            if (rows.size() > 0 && rows.getTime(0) <= tail[1]) {
+                throw new IOException("cold archive " + path + " already contains data up to " + tail[1]);
+            }
+            // 丢弃上次异常退出时写了一半的块和末尾的水位标记
+            raf.setLength(tail[0]);
+            raf.seek(tail[0]);
+            for (int from = 0; from < rows.size(); from += BLOCK_ROWS) {
+                int count = Math.min(BLOCK_ROWS, rows.size() - from);
+                byte[] block = encode(rows, from, count);
+                raf.writeLong(rows.getTime(from));
+                raf.writeLong(rows.getTime(from + count - 1));
+                raf.writeInt(count);
+                raf.writeInt(block.length);
+                raf.write(block);
+            }
+            long last = rows.size() > 0 ? rows.getTime(rows.size() - 1) : tail[1];
+            if (upTo > last) {
+                raf.writeLong(upTo);
+                raf.writeLong(upTo);
+                raf.writeInt(0);
+                raf.writeInt(0);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @Title: prune
+     * @Description: 删除末行时间早于before的数据块, 有块被删除时重写文件
+     * @param @param path  -- 归档文件
+     * @param @param before-- 保留的最早时间(时间戳[s])
+     * @return 删除的块数
+     */
+    public static int prune(String path, long before) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+            return 0;
+        }
+        File tmp = new File(path + ".tmp");
+        int dropped = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            scan(raf);
+            long pos = HEADER_SIZE, length = raf.length();
+            while (pos + BLOCK_HEADER_SIZE <= length) {
+                raf.seek(pos + 8);
+                long last = raf.readLong();
+                raf.readInt();
+                int bytes = raf.readInt();
+                // 最后一个块记录已归档到的时间, 不能删除
+                if (last >= before || pos + BLOCK_HEADER_SIZE + bytes >= length) {
+                    break;
+                }
+                pos += BLOCK_HEADER_SIZE + bytes;
+                dropped++;
+            }
+            if (dropped == 0) {
+                return 0;
+            }
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                byte[] buf = new byte[65536];
+                raf.seek(0);
+                raf.readFully(buf, 0, HEADER_SIZE);
+                out.write(buf, 0, HEADER_SIZE);
+                raf.seek(pos);
+                int n;
+                while ((n = raf.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            raf.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+        return dropped;
+    }
+
+    /**
+     * @Title: read
+     * @Description: 读取时间范围内的数据, 只解码与范围相交的块
+     * @param @param path -- 归档文件
+     * @param @param start-- 开始时间(时间戳[s], 包含)
+     * @param @param end  -- 结束时间(时间戳[s], 包含)
+     * @return 数据, 文件不存在时返回null
+     */
+    public static RrdRows read(String path, long start, long end) throws IOException {
+        if (!new File(path).exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("invalid cold archive " + path);
+            }
+            int dsCount = raf.readInt();
+            RrdRows rows = new RrdRows(dsCount, 64);
+            long pos = HEADER_SIZE, length = raf.length();
+            while (pos + BLOCK_HEADER_SIZE <= length) {
+                raf.seek(pos);
+                long first = raf.readLong();
+                long last = raf.readLong();
+                int count = raf.readInt();
+                int bytes = raf.readInt();
+                if (pos + BLOCK_HEADER_SIZE + bytes > length || first > end) {
+                    break;
+                }
+                if (count > 0 && last >= start) {
+                    byte[] block = new byte[bytes];
+                    raf.readFully(block);
+                    decode(block, first, count, dsCount, start, end, rows);
+                }
+                pos += BLOCK_HEADER_SIZE + bytes;
+            }
+            return rows;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 扫描块头, 返回{有效数据末尾位置(不含末尾水位标记), 已归档到的时间},
+     * 结束后文件指针位于数据源个数之前
+     */
+    private static long[] scan(RandomAccessFile raf) throws IOException {
+        long length = raf.length(), lastTime = Long.MIN_VALUE;
+        if (length < HEADER_SIZE) {
+            throw new IOException("invalid cold archive");
+        }
+        long pos = HEADER_SIZE, dataEnd = HEADER_SIZE;
+        while (pos + BLOCK_HEADER_SIZE <= length) {
+            raf.seek(pos + 8);
+            long last = raf.readLong();
+            int count = raf.readInt();
+            int bytes = raf.readInt();
+            if (pos + BLOCK_HEADER_SIZE + bytes > length) {
+                break;
+            }
+            lastTime = last;
+            pos += BLOCK_HEADER_SIZE + bytes;
+            if (count > 0) {
+                dataEnd = pos;
+            }
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+            throw new IOException("invalid cold archive");
+        }
+        return new long[] {dataEnd, lastTime};
+    }
+
+    private static byte[] encode(RrdRows rows, int from, int count) {
+        BitOutput out = new BitOutput(count);
+        long prevTime = rows.getTime(from), prevDelta = STEP;
+        for (int i = from + 1; i < from + count; i++) {
+            long delta = rows.getTime(i) - prevTime;
+            long dod = delta - prevDelta;
+            if (dod == 0) {
+                out.writeBits(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                out.writeBits(0x2, 2);
+                out.writeBits(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                out.writeBits(0x6, 3);
+                out.writeBits(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                out.writeBits(0xe, 4);
+                out.writeBits(dod, 12);
+            } else {
+                out.writeBits(0xf, 4);
+                out.writeBits(dod, 32);
+            }
+            prevTime = rows.getTime(i);
+            prevDelta = delta;
+        }
+        for (int col = 0; col < rows.getDsCount(); col++) {
+            long prev = Double.doubleToRawLongBits(rows.getValue(from, col));
+            out.writeBits(prev, 64);
+            int prevLeading = -1, prevTrailing = 0;
+            for (int i = from + 1; i < from + count; i++) {
+                long bits = Double.doubleToRawLongBits(rows.getValue(i, col));
+                long xor = bits ^ prev;
+                if (xor == 0) {
+                    out.writeBits(0, 1);
+                } else {
+                    int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    int trailing = Long.numberOfTrailingZeros(xor);
+                    if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                        out.writeBits(0x2, 2);
+                        out.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                    } else {
+                        int meaningful = 64 - leading - trailing;
+                        out.writeBits(0x3, 2);
+                        out.writeBits(leading, 5);
+                        out.writeBits(meaningful - 1, 6);
+                        out.writeBits(xor >>> trailing, meaningful);
+                        prevLeading = leading;
+                        prevTrailing = trailing;
+                    }
+                }
+                prev = bits;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void decode(byte[] block, long first, int count, int dsCount,
+            long start, long end, RrdRows rows) {
+        BitInput in = new BitInput(block);
+        long[] times = new long[count];
+        times[0] = first;
+        long delta = STEP;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (in.readBit() == 0) {
+                dod = 0;
+            } else if (in.readBit() == 0) {
+                dod = in.readSigned(7);
+            } else if (in.readBit() == 0) {
+                dod = in.readSigned(9);
+            } else if (in.readBit() == 0) {
+                dod = in.readSigned(12);
+            } else {
+                dod = in.readSigned(32);
+            }
+            delta += dod;
+            times[i] = times[i - 1] + delta;
+        }
+        double[] values = new double[count * dsCount];
+        for (int col = 0; col < dsCount; col++) {
+            long prev = in.readBits(64);
+            values[col] = Double.longBitsToDouble(prev);
+            int leading = 0, trailing = 0;
+            for (int i = 1; i < count; i++) {
+                if (in.readBit() == 1) {
+                    if (in.readBit() == 1) {
+                        leading = (int) in.readBits(5);
+                        trailing = 64 - leading - ((int) in.readBits(6) + 1);
+                    }
+                    prev ^= in.readBits(64 - leading - trailing) << trailing;
+                }
+                values[i * dsCount + col] = Double.longBitsToDouble(prev);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (times[i] >= start && times[i] <= end) {
+                rows.add(times[i], values, i * dsCount);
+            }
+        }
+    }
+
+    private static class BitOutput {
+        private byte[] buf;
+        private long bitPos;
+
+        BitOutput(int rows) {
+            buf = new byte[Math.max(64, rows)];
+        }
+
+        void writeBits(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                int byteIdx = (int) (bitPos >>> 3);
+                if (byteIdx == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    buf[byteIdx] |= (byte) (0x80 >>> (bitPos & 7));
+                }
+                bitPos++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((bitPos + 7) >>> 3));
+        }
+    }
+
+    private static class BitInput {
+        private final byte[] buf;
+        private long bitPos;
+
+        BitInput(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readBit() {
+            int bit = (buf[(int) (bitPos >>> 3)] >>> (7 - (bitPos & 7))) & 1;
+            bitPos++;
+            return bit;
+        }
+
+        long readBits(int n) {
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        long readSigned(int n) {
+            long value = readBits(n);
+            return (value << (64 - n)) >> (64 - n);
+        }
+    }
+
+    /**
+     * 统计归档文件的压缩率和解码速度
+     *
+     * 用法: java com.ptcs.kpi.RrdColdArchive 目录或.cold文件 ...
+     */
+    public static void main(String[] args) throws IOException {
+        long files = 0, rowCount = 0, rawBytes = 0, fileBytes = 0, nanos = 0;
+        for (String arg : args) {
+            for (File file : listColdFiles(new File(arg))) {
+                long begin = System.nanoTime();
+                RrdRows rows = read(file.getPath(), Long.MIN_VALUE, Long.MAX_VALUE);
+                nanos += System.nanoTime() - begin;
+                files++;
+                rowCount += rows.size();
+                rawBytes += (long) rows.size() * (8 + 8 * rows.getDsCount());
+                fileBytes += file.length();
+            }
+        }
+        System.out.println(String.format("files=%d rows=%d raw=%dKB archive=%dKB ratio=%.1f decode=%.0f rows/s",
+                files, rowCount, rawBytes >> 10, fileBytes >> 10,
+                fileBytes == 0 ? 0.0 : (double) rawBytes / fileBytes,
+                nanos == 0 ? 0.0 : rowCount * 1e9 / nanos));
+    }
+
+    private static List<File> listColdFiles(File file) {
+        List<File> list = new ArrayList<File>();
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    list.addAll(listColdFiles(child));
+                }
+            }
+        } else if (file.getName().endsWith(SUFFIX)) {
+            list.add(file);
+        }
+        return list;
+    }
+}
@@ -4,27 +4,46 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.rrd4j.core.Util;
-import org.rrd4j.cmd.RrdCommander;
 
-import com.ptcs.kpi.Rrd.FetchData;
 import com.ptcs.app.common.bean.ManagerBean;
 
 public class RrdCommon {
 
-    private static Rrd rrd;
+    private static final String[] BIZ_DS = {"NORMAL", "NORMAL_ALERT", "IMPORTANT_ALERT", "URGENT_ALERT"};
+    private static final String[] HOST_DS = {"VALUE"};
+    private static final long STEP = 60;
+
     private static String osName;
     private static String analysisPath;
     private static String wholeDir;
     private static String wholeName;
-    private static String createCmd;
-    private static String updateCmd;
-    private static String fetchBizCmd;
-    private static String fetchHostCmd;
-    private static boolean isOsLinux;
+    private static String hostName;
+    private static String rrdRoot;
+    private static String engineName;
+    private static String bizEngineName;
+    private static String hostEngineName;
+    private static String hostDaemon;
+    private static RrdEngine bizEngine;
+    private static RrdEngine hostEngine;
+    private static long rollupInterval;
+    private static long reorderLateness;
+    private static String reorderPolicy;
+    private static RrdReorderBuffer reorderBuffer;
+    private static RrdReorderBuffer hostBuffer;
+    private static long liveRows;
+    private static long coldAge;
+    private static long coldInterval;
+    private static long coldRetention;
+    private static Timer coldTimer;
+    private static int tailCatchupRows;
+    private static RrdTail tail;
 
     static {
         try {
@@ -32,50 +51,106 @@ public class RrdCommon {
             InputStream fis = RrdCommon.class.getResourceAsStream("/store.properties");
             storeProp.load(fis);
             analysisPath = storeProp.getProperty("system.analysis.path");
+            engineName = storeProp.getProperty("store.engine", "auto");
+            bizEngineName = storeProp.getProperty("store.engine.biz", "");
+            hostEngineName = storeProp.getProperty("store.engine.host", "");
+            hostDaemon = storeProp.getProperty("store.host.daemon", "");
+            rollupInterval = Long.parseLong(storeProp.getProperty("rollup.persist.interval", "300"));
+            reorderLateness = Long.parseLong(storeProp.getProperty("reorder.lateness", "120"));
+            reorderPolicy = storeProp.getProperty("reorder.policy", "last");
+            liveRows = Long.parseLong(storeProp.getProperty("rrd.live.rows", "144000"));
+            String age = storeProp.getProperty("cold.age", "").trim();
+            coldAge = age.length() > 0 ? Long.parseLong(age) : -1;
+            coldInterval = Long.parseLong(storeProp.getProperty("cold.compact.interval", "0"));
+            coldRetention = Long.parseLong(storeProp.getProperty("cold.retention", "0"));
+            tailCatchupRows = Integer.parseInt(storeProp.getProperty("tail.catchup.rows", "60"));
             Properties osProps = System.getProperties();
             osName = osProps.getProperty("os.name");
             System.out.println(osName);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // 未配置cold.age时只归档即将移出RRD的数据, 留两个归档间隔的余量
+        if (coldAge < 0) {
+            coldAge = liveRows * 60 - 2 * coldInterval;
+        }
+        // 数据必须在移出RRD之前归档: RRD保留时间 > cold.age + 归档间隔, 否则两者之间的数据丢失
+        if (coldInterval > 0 && (coldAge <= 0 || liveRows * 60 <= coldAge + coldInterval)) {
+            long safeAge = liveRows * 60 - 2 * coldInterval;
+            System.out.println("rrd.live.rows=" + liveRows + " keeps " + liveRows * 60 + "s, not more than cold.age="
+                + coldAge + " + cold.compact.interval=" + coldInterval + ", "
+                + (safeAge > 0 ? "cold.age lowered to " + safeAge : "cold archive disabled"));
+            if (safeAge > 0) {
+                coldAge = safeAge;
+            } else {
+                coldInterval = 0;
+            }
+        }
 
-        rrd = Rrd.getInstance();
         wholeDir = "%OS_RRDPATH%/ipm/rrd/app/%BIZNAME%/";
         wholeName = "%OS_RRDPATH%/ipm/rrd/app/%BIZNAME%/%KPINAME%.rrd";
-        createCmd = "create %OS_RRDPATH%/ipm/rrd/app/%BIZNAME%/%KPINAME%.rrd --start %TIME% --step 60 " +                      
-            "DS:NORMAL:GAUGE:90:U:U DS:NORMAL_ALERT:GAUGE:90:U:U " +                                                           
-            "DS:IMPORTANT_ALERT:GAUGE:90:U:U DS:URGENT_ALERT:GAUGE:90:U:U " +
-            "RRA:AVERAGE:0.5:1:144000";
-        updateCmd = "update %OS_RRDPATH%/ipm/rrd/app/%BIZNAME%/%KPINAME%.rrd " + 
-            "%TIME%:%NORMAL%:%NORMAL_ALERT%:%IMPORTANT_ALERT%:%URGENT_ALERT%";
-        fetchBizCmd= "fetch %OS_RRDPATH%/ipm/rrd/app/%BIZNAME%/%KPINAME%.rrd " + 
-            "AVERAGE --start %STARTTIME% --end %ENDTIME% --resolution 60";
-        fetchHostCmd = "fetch --daemon unix:/tmp/rrdcached.sock %OS_RRDPATH%/ipm/rrd/interfaces/device.2/hosts/" + 
-            "%IP0%/%IP1%/%IP2%/%IP3%/%PORT%/%KPINAME%.rrd " + 
-            "AVERAGE --start %STARTTIME% --end %ENDTIME% --resolution 60";
+        hostName = "%OS_RRDPATH%/ipm/rrd/interfaces/device.2/hosts/%IP0%/%IP1%/%IP2%/%IP3%/%PORT%/%KPINAME%.rrd";
+        rrdRoot = "%OS_RRDPATH%/ipm/rrd/";
 
         if (osName.equals("Linux")) {
-            isOsLinux = true;
             wholeDir = wholeDir.replaceFirst("%OS_RRDPATH%", analysisPath);
             wholeName = wholeName.replaceFirst("%OS_RRDPATH%", analysisPath);
-            createCmd = createCmd.replaceFirst("%OS_RRDPATH%", analysisPath);
-            updateCmd = updateCmd.replaceFirst("%OS_RRDPATH%", analysisPath);
-            fetchBizCmd = fetchBizCmd.replaceFirst("%OS_RRDPATH%", analysisPath);
-            fetchHostCmd = fetchHostCmd.replaceFirst("%OS_RRDPATH%", analysisPath);
+            hostName = hostName.replaceFirst("%OS_RRDPATH%", analysisPath);
+            rrdRoot = rrdRoot.replaceFirst("%OS_RRDPATH%", analysisPath);
         } else {
-            isOsLinux = false;
             wholeDir = wholeDir.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
             wholeName = wholeName.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
-            createCmd = createCmd.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
-            updateCmd = updateCmd.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
-            fetchBizCmd = fetchBizCmd.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
-            fetchHostCmd = fetchHostCmd.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
+            hostName = hostName.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
+            rrdRoot = rrdRoot.replaceFirst("%OS_RRDPATH%", "C:/kpi/ipm/rrd/");
+        }
+        bizEngine = RrdEngines.create(bizEngineName.length() > 0 ? bizEngineName : engineName, null);
+        hostEngine = RrdEngines.create(hostEngineName.length() > 0 ? hostEngineName : engineName, hostDaemon);
+        System.out.println("store engine: biz=" + bizEngine.getName() + ", host=" + hostEngine.getName());
+        tail = new RrdTail(tailCatchupRows);
+        RrdRollup.init(wholeDir.replaceFirst("%BIZNAME%/", "") + "rollup.dat", rollupInterval);
+        reorderBuffer = new RrdReorderBuffer(new RrdReorderBuffer.Sink() {
+            public long last(String bizName, String kpiName) {
+                return RrdCommon.lastBizUpdate(bizName, kpiName);
+            }
+
+            public boolean write(String bizName, String kpiName, long[] times, double[] values, int count) {
+                return RrdCommon.writeBizSteps(bizName, kpiName, times, values, count);
+            }
+        }, reorderLateness, RrdReorderBuffer.parsePolicy(reorderPolicy));
+        reorderBuffer.start();
+        // 主机数据以ip:port作为业务名称
+        hostBuffer = new RrdReorderBuffer(new RrdReorderBuffer.Sink() {
+            public long last(String host, String kpiName) {
+                return RrdCommon.lastHostUpdate(host, kpiName);
+            }
+
+            public boolean write(String host, String kpiName, long[] times, double[] values, int count) {
+                return RrdCommon.writeHostSteps(host, kpiName, times, values, count);
+            }
+        }, HOST_DS.length, reorderLateness, RrdReorderBuffer.parsePolicy(reorderPolicy));
+        hostBuffer.start();
+        // 先写完缓冲样本(同时更新汇总), 再保存汇总快照
+        Runtime.getRuntime().addShutdownHook(new Thread("rrd-shutdown") {
+            public void run() {
+                reorderBuffer.flush(true);
+                hostBuffer.flush(true);
+                RrdRollup.persist();
+            }
+        });
+        // 内存引擎没有文件可归档
+        if (coldInterval > 0 && (bizEngine.getCapabilities() & RrdEngine.CAP_PERSISTENT) != 0) {
+            coldTimer = new Timer("rrd-cold", true);
+            coldTimer.schedule(new TimerTask() {
+                public void run() {
+                    RrdCommon.rrdCompactCold();
+                }
+            }, coldInterval * 1000, coldInterval * 1000);
         }
     }
 
     /**
      * @Title: rrdWriteBizData
-     * @Description: rrd写入业务数据
+     * @Description: rrd写入业务数据, 经重排缓冲后按时间顺序写入
      * @param @param time   -- 时间戳[s]
      * @param @param bizName-- 业务名称
      * @param @param kpiName-- KPI名称
@@ -83,29 +158,101 @@ public class RrdCommon {
      * @param @param normalAlert -- 普通告警
      * @param @param importantAlert-- 重要告警
      * @param @param urgentAlert-- 紧急告警
+     * @return false表示名称非法或样本迟到被丢弃; true表示已接受, 可能仍在重排缓冲中
      */
-    public static void rrdWriteBizData(long time, String bizName, String kpiName, 
+    public static boolean rrdWriteBizData(long time, String bizName, String kpiName, 
             double normal, double normalAlert, double importantAlert, double urgentAlert) {
+        if (!isSafeName(bizName) || !isSafeName(kpiName)) {
+            System.out.println("invalid biz/kpi name: " + bizName + "/" + kpiName);
+            return false;
+        }
+        time = Util.normalize(time, 60);
+        return reorderBuffer.add(time, bizName, kpiName,
+            new double[] {normal, normalAlert, importantAlert, urgentAlert});
+    }
+
+    /**
+     * @Title: getDroppedCount
+     * @Description: 因迟到超过reorder.lateness而丢弃的业务和主机数据样本数
+     */
+    public static long getDroppedCount() {
+        return reorderBuffer.getDroppedCount() + hostBuffer.getDroppedCount();
+    }
+
+    /**
+     * @Title: getFailedCount
+     * @Description: 经重排缓冲写入RRD失败的业务和主机数据样本数
+     */
+    public static long getFailedCount() {
+        return reorderBuffer.getFailedCount() + hostBuffer.getFailedCount();
+    }
+
+    private static boolean writeBizSteps(String bizName, String kpiName, long[] times, double[] values, int count) {
         try {
-            String update = updateCmd;
-            time = Util.normalize(time, 60);
-            update = update
-                .replaceFirst("%BIZNAME%", bizName)
-                .replaceFirst("%KPINAME%", kpiName)
-                .replaceFirst("%TIME%", String.valueOf(time))
-                .replaceFirst("%NORMAL%", String.valueOf(normal))
-                .replaceFirst("%NORMAL_ALERT%", String.valueOf(normalAlert))
-                .replaceFirst("%IMPORTANT_ALERT%", String.valueOf(importantAlert))
-                .replaceFirst("%URGENT_ALERT%", String.valueOf(urgentAlert));
-            RrdCommon.createDir(time, bizName, kpiName);
-            System.out.println(update);
-            if (isOsLinux) {
-                rrd.update(update);
-            } else {
-                RrdCommander.execute(update);
+            int dsCount = BIZ_DS.length;
+            String whole = RrdCommon.createDir(times[0], bizName, kpiName);
+            updateSteps(bizEngine, whole, times, values, count, dsCount);
+            // 只汇总已写入RRD的样本, 写入失败时汇总与RRD保持一致
+            for (int i = 0; i < count; i++) {
+                RrdRollup.update(times[i], bizName, kpiName, values[i * dsCount], values[i * dsCount + 1],
+                    values[i * dsCount + 2], values[i * dsCount + 3]);
+            }
+            tail.commit(whole, times[count - 1]);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @Title: rrdWriteHostData
+     * @Description: rrd写入主机数据(单数据源), 经重排缓冲后按时间顺序写入,
+     *               jni引擎配置store.host.daemon时经rrdcached写入
+     * @param @param time   -- 时间戳[s]
+     * @param @param ip     -- 主机IP
+     * @param @param port   -- 端口
+     * @param @param kpiName-- KPI名称
+     * @param @param value  -- 值
+     * @return false表示名称非法或样本迟到被丢弃; true表示已接受, 可能仍在重排缓冲中
+     */
+    public static boolean rrdWriteHostData(long time, String ip, String port, String kpiName, double value) {
+        try {
+            RrdCommon.hostPath(ip, port, kpiName);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        time = Util.normalize(time, 60);
+        return hostBuffer.add(time, ip + ":" + port, kpiName, new double[] {value});
+    }
+
+    private static boolean writeHostSteps(String host, String kpiName, long[] times, double[] values, int count) {
+        try {
+            int sep = host.lastIndexOf(':');
+            String whole = RrdCommon.hostPath(host.substring(0, sep), host.substring(sep + 1), kpiName);
+            if (!hostEngine.exists(whole)) {
+                new File(whole).getParentFile().mkdirs();
+                hostEngine.create(whole, times[0] - 1, STEP, HOST_DS, liveRows);
             }
+            updateSteps(hostEngine, whole, times, values, count, HOST_DS.length);
+            tail.commit(whole, times[count - 1]);
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void updateSteps(RrdEngine engine, String whole, long[] times, double[] values,
+            int count, int dsCount) throws RrdException {
+        if ((engine.getCapabilities() & RrdEngine.CAP_BATCH_UPDATE) != 0) {
+            engine.update(whole, times, values, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                engine.update(whole, new long[] {times[i]},
+                    Arrays.copyOfRange(values, i * dsCount, (i + 1) * dsCount), 1);
+            }
         }
     }
 
@@ -119,50 +266,23 @@ public class RrdCommon {
      * @return 返回数据
      */
     public static List<RrdBizBean> rrdFetchBiz(long start, long end, String bizName, String kpiName) {
-        String fetch = fetchBizCmd;
         List<RrdBizBean> fetchList = new ArrayList<RrdBizBean>();
         try {
-            String[] setime = calcStartEndTime(start, end).split(",");
-            fetch = fetch
-                .replaceFirst("%BIZNAME%", bizName)
-                .replaceFirst("%KPINAME%", kpiName)
-                .replaceFirst("%STARTTIME%", setime[0])
-                .replaceFirst("%ENDTIME%", setime[1]);
-            System.out.println(fetch);
-            if (isOsLinux) {
-                com.ptcs.kpi.Rrd.FetchData data = (com.ptcs.kpi.Rrd.FetchData )rrd.fetch(fetch);
-                int rows = data.getRowCount();
-                long time = 0l;
-                if (rows > 0) {
-                    for (int i = 0; i < rows; i++) {
-                        time  = data.getTimestamp(i) + 60;
-                        if (start >= time) {continue;}
-                        if (end < time) {break;}
-                        RrdBizBean rbb = new RrdBizBean();
-                        rbb.setNormal((Double.isNaN(data.getValue(i, 0)) ? 0.0 : data.getValue(i, 0)));
-                        rbb.setNormalAlert((Double.isNaN(data.getValue(i, 1)) ? 0.0 : data.getValue(i, 1)));
-                        rbb.setImportantAlert((Double.isNaN(data.getValue(i, 2)) ? 0.0 : data.getValue(i, 2)));
-                        rbb.setUrgentAlert((Double.isNaN(data.getValue(i, 3)) ? 0.0 : data.getValue(i, 3)));
-                        fetchList.add(rbb);
-                    }
-                }
-            } else {
-                org.rrd4j.core.FetchData data = (org.rrd4j.core.FetchData )RrdCommander.execute(fetch);
-                int rows = data.getRowCount();
-                long time = 0l;
-                if (rows > 0) {
-                    for (int i = 0; i < rows; i++) {
-                        time  = data.getTimestamps()[i] + 60;
-                        if (start >= time) {continue;}
-                        if (end < time) {break;}
-                        RrdBizBean rbb = new RrdBizBean();
-                        rbb.setNormal((Double.isNaN(data.getValues(0)[i]) ? 0.0 : data.getValues(0)[i]));
-                        rbb.setNormalAlert((Double.isNaN(data.getValues(1)[i]) ? 0.0 : data.getValues(1)[i]));
-                        rbb.setImportantAlert((Double.isNaN(data.getValues(2)[i]) ? 0.0 : data.getValues(2)[i]));
-                        rbb.setUrgentAlert((Double.isNaN(data.getValues(3)[i]) ? 0.0 : data.getValues(3)[i]));
-                        fetchList.add(rbb);
-                    }
-                }
+            String whole = wholeName.replaceFirst("%BIZNAME%", bizName).replaceFirst("%KPINAME%", kpiName);
+            RrdRows cold = readCold(whole, start, end);
+            long[] setime = calcStartEndTime(start, end);
+            RrdRows data = bizEngine.fetch(whole, setime[0], setime[1], STEP);
+            long time = 0l;
+            for (int i = 0; i < data.size(); i++) {
+                time  = data.getTime(i) + 60;
+                if (start >= time) {continue;}
+                if (end < time) {break;}
+                RrdBizBean rbb = new RrdBizBean();
+                rbb.setNormal(stitch(data.getValue(i, 0), cold, time - 60, 0));
+                rbb.setNormalAlert(stitch(data.getValue(i, 1), cold, time - 60, 1));
+                rbb.setImportantAlert(stitch(data.getValue(i, 2), cold, time - 60, 2));
+                rbb.setUrgentAlert(stitch(data.getValue(i, 3), cold, time - 60, 3));
+                fetchList.add(rbb);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -180,44 +300,18 @@ public class RrdCommon {
      * @return 返回数据
      */
     public static List<Double> rrdFetchHost(long start, long end, ManagerBean mb, String kpiName) {
-        String fetch = fetchHostCmd;
         List<Double> fetchList = new ArrayList<Double>();
         try {
-            String[] ips = mb.getIp().split(".");
-            String[] setime = calcStartEndTime(start, end).split(",");
-            fetch = fetch
-                .replaceFirst("%IP0%", ips[0])
-                .replaceFirst("%IP1%", ips[1])
-                .replaceFirst("%IP2%", ips[2])
-                .replaceFirst("%IP3%", ips[3])
-                .replaceFirst("%PORT%", mb.getPort())
-                .replaceFirst("%KPINAME%", kpiName)
-                .replaceFirst("%STARTTIME%", setime[0])
-                .replaceFirst("%ENDTIME%", setime[1]);
-            if (isOsLinux) {
-                com.ptcs.kpi.Rrd.FetchData data = (com.ptcs.kpi.Rrd.FetchData )rrd.fetch(fetch);
-                int rows = data.getRowCount();
-                long time = 0l;
-                if (rows > 0) {
-                    for (int i = 0; i < rows; i++) {
-                        time  = data.getTimestamp(i) + 60;
-                        if (start >= time) {continue;}
-                        if (end < time) {break;}
-                        fetchList.add((Double.isNaN(data.getValue(i, 0)) ? 0.0 : data.getValue(i, 0)));
-                    }
-                }
-            } else {
-                org.rrd4j.core.FetchData data = (org.rrd4j.core.FetchData )RrdCommander.execute(fetch);
-                int rows = data.getRowCount();
-                long time = 0l;
-                if (rows > 0) {
-                    for (int i = 0; i < rows; i++) {
-                        time  = data.getTimestamps()[i] + 60;
-                        if (start >= time) {continue;}
-                        if (end < time) {break;}
-                        fetchList.add((Double.isNaN(data.getValues(0)[i]) ? 0.0 : data.getValues(0)[i]));
-                    }
-                }
+            String whole = RrdCommon.hostPath(mb.getIp(), mb.getPort(), kpiName);
+            RrdRows cold = readCold(whole, start, end);
+            long[] setime = calcStartEndTime(start, end);
+            RrdRows data = hostEngine.fetch(whole, setime[0], setime[1], STEP);
+            long time = 0l;
+            for (int i = 0; i < data.size(); i++) {
+                time  = data.getTime(i) + 60;
+                if (start >= time) {continue;}
+                if (end < time) {break;}
+                fetchList.add(stitch(data.getValue(i, 0), cold, time - 60, 0));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -249,30 +343,292 @@ public class RrdCommon {
         return retList;
     }
 
-    private static void createDir(long time, String bizName, String kpiName) throws Exception {
-        String create = createCmd, whole = wholeDir;
-        whole = whole.replaceFirst("%BIZNAME%", bizName);
+    /**
+     * @Title: rrdSubscribeBiz
+     * @Description: 订阅业务数据增量, 写入提交新的时间点后只推送游标之后的行,
+     *               同一KPI的所有订阅共用一次读取
+     * @param @param cursor  -- 已有数据的结束时间(时间戳[s]), 一般为上次rrdFetchBiz的end
+     * @param @param bizName -- 业务名称
+     * @param @param kpiName -- KPI名称
+     * @param @param listener-- 新行回调, 数据源依次为普通/普通告警/重要告警/紧急告警
+     * @return 订阅, 不再需要时调用close
+     */
+    public static RrdTail.Subscription rrdSubscribeBiz(long cursor, String bizName, String kpiName,
+            RrdTail.Listener listener) {
+        if (!isSafeName(bizName) || !isSafeName(kpiName)) {
+            throw new IllegalArgumentException("invalid biz/kpi name: " + bizName + "/" + kpiName);
+        }
+        String whole = wholeName.replaceFirst("%BIZNAME%", bizName).replaceFirst("%KPINAME%", kpiName);
+        return tail.subscribe(whole, bizEngine, cursor, listener);
+    }
+
+    /**
+     * @Title: rrdSubscribeHost
+     * @Description: 订阅主机数据增量, 写入提交新的时间点后只推送游标之后的行,
+     *               同一主机KPI的所有订阅共用一次读取
+     * @param @param cursor  -- 已有数据的结束时间(时间戳[s]), 一般为上次rrdFetchHost的end
+     * @param @param mb      -- 业务系统对象
+     * @param @param kpiName -- KPI名称
+     * @param @param listener-- 新行回调
+     * @return 订阅, 不再需要时调用close
+     */
+    public static RrdTail.Subscription rrdSubscribeHost(long cursor, ManagerBean mb, String kpiName,
+            RrdTail.Listener listener) {
+        String whole = RrdCommon.hostPath(mb.getIp(), mb.getPort(), kpiName);
+        return tail.subscribe(whole, hostEngine, cursor, listener);
+    }
+
+    /**
+     * @Title: rrdCompactCold
+     * @Description: 把早于cold.age的数据追加到冷数据归档, 由后台定时调用
+     */
+    public static void rrdCompactCold() {
+        long end = Util.normalize(System.currentTimeMillis() / 1000 - coldAge, 60);
+        List<File> files = new ArrayList<File>();
+        listRrdFiles(new File(rrdRoot), files);
+        for (File file : files) {
+            try {
+                compactCold(isHostFile(file) ? hostEngine : bizEngine, file.getPath(), end, liveRows);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @Title: rrdMigrateLive
+     * @Description: 调小rrd.live.rows后重建已有RRD, 释放磁盘: 先把早于cold.age的数据归档,
+     *               再把最近rrd.live.rows行写入新文件替换原文件. 须停止写入(包括rrdcached)后执行
+     * @param @param oldRows -- 已有RRD的行数(原rrd.live.rows), 首次归档时读取该范围
+     */
+    public static void rrdMigrateLive(long oldRows) {
+        if (coldInterval <= 0 || (bizEngine.getCapabilities() & RrdEngine.CAP_PERSISTENT) == 0) {
+            System.out.println("cold archive disabled, set cold.compact.interval before migrating");
+            return;
+        }
+        // 主机数据直接读写文件, 不经rrdcached
+        RrdEngine host = RrdEngines.create(hostEngine.getName(), null);
+        long end = Util.normalize(System.currentTimeMillis() / 1000 - coldAge, 60);
+        List<File> files = new ArrayList<File>();
+        listRrdFiles(new File(rrdRoot), files);
+        int migrated = 0;
+        for (File file : files) {
+            RrdEngine engine = isHostFile(file) ? host : bizEngine;
+            try {
+                compactCold(engine, file.getPath(), end, oldRows);
+                rebuildLive(engine, file.getPath(), isHostFile(file) ? HOST_DS : BIZ_DS);
+                migrated++;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        host.close();
+        System.out.println("migrated " + migrated + " of " + files.size() + " rrd files to " + liveRows + " rows");
+    }
+
+    private static void compactCold(RrdEngine engine, String whole, long end, long firstRows) throws Exception {
+        String cold = coldName(whole);
+        long last = RrdColdArchive.lastTime(cold);
+        long start = last == Long.MIN_VALUE ? end - firstRows * 60 : last;
+        if (coldRetention > 0) {
+            RrdColdArchive.prune(cold, System.currentTimeMillis() / 1000 - coldRetention);
+        }
+        if (start >= end) {
+            return;
+        }
+        RrdRows data = engine.fetch(whole, start, end, STEP);
+        RrdRows rows = new RrdRows(data.getDsCount(), data.size());
+        double[] row = new double[data.getDsCount()];
+        for (int i = 0; i < data.size(); i++) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = data.getValue(i, j);
+            }
+            addColdRow(rows, data.getTime(i), row, start, end);
+        }
+        // 没有数据行时也写入水位, 下次只读取新增的范围
+        RrdColdArchive.append(cold, rows, end);
+    }
+
+    /**
+     * 按最近rrd.live.rows行重建RRD, 已写入的时间点不变, 开头的空行不写入
+     */
+    private static void rebuildLive(RrdEngine engine, String whole, String[] dsNames) throws Exception {
+        long last = engine.last(whole);
+        RrdRows data = engine.fetch(whole, last - liveRows * 60, last, STEP);
+        int dsCount = data.getDsCount();
+        long[] times = new long[data.size()];
+        double[] values = new double[data.size() * dsCount];
+        int count = 0;
+        for (int i = 0; i < data.size(); i++) {
+            long time = data.getTime(i);
+            if (time <= last - liveRows * 60 || time > last) {
+                continue;
+            }
+            boolean empty = true;
+            for (int j = 0; j < dsCount; j++) {
+                values[count * dsCount + j] = data.getValue(i, j);
+                empty &= Double.isNaN(data.getValue(i, j));
+            }
+            if (count > 0 || !empty) {
+                times[count++] = time;
+            }
+        }
+        String tmp = whole + ".tmp";
+        engine.create(tmp, count > 0 ? times[0] - 1 : last, STEP, dsNames, liveRows);
+        for (int from = 0; from < count; from += 720) {
+            int n = Math.min(720, count - from);
+            engine.update(tmp, Arrays.copyOfRange(times, from, from + n),
+                Arrays.copyOfRange(values, from * dsCount, (from + n) * dsCount), n);
+        }
+        // 关闭引擎缓存的原文件和新文件后再替换
+        engine.close();
         File file = new File(whole);
-        file.mkdirs();
+        file.delete();
+        if (!new File(tmp).renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    private static boolean isHostFile(File file) {
+        String sep = File.separator;
+        return file.getPath().indexOf(sep + "interfaces" + sep) >= 0;
+    }
+
+    private static void addColdRow(RrdRows rows, long time, double[] row, long start, long end) {
+        if (time <= start || time > end) {
+            return;
+        }
+        if (rows.size() == 0) {
+            // 跳过开头的空行(文件创建前或长期无数据), 读取时缺少的行与空值相同
+            boolean empty = true;
+            for (int j = 0; j < row.length; j++) {
+                empty &= Double.isNaN(row[j]);
+            }
+            if (empty) {
+                return;
+            }
+        }
+        rows.add(time, row, 0);
+    }
+
+    private static RrdRows readCold(String whole, long start, long end) {
+        // 查询范围仍在RRD保留范围内时不读取归档
+        long liveStart = System.currentTimeMillis() / 1000 - liveRows * 60;
+        if (coldInterval <= 0 || start - 60 >= liveStart) {
+            return null;
+        }
+        try {
+            return RrdColdArchive.read(coldName(whole), start - 60, end);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static double stitch(double val, RrdRows cold, long time, int col) {
+        if (Double.isNaN(val) && cold != null) {
+            val = cold.getValueAt(time, col);
+        }
+        return Double.isNaN(val) ? 0.0 : val;
+    }
+
+    private static String coldName(String whole) {
+        return whole.substring(0, whole.length() - ".rrd".length()) + RrdColdArchive.SUFFIX;
+    }
+
+    private static void listRrdFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listRrdFiles(child, files);
+            } else if (child.getName().endsWith(".rrd")) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static String hostPath(String ip, String port, String kpiName) {
+        String[] ips = ip.split("\\.");
+        if (ips.length != 4 || !port.matches("[0-9]{1,5}") || !isSafeName(kpiName)) {
+            throw new IllegalArgumentException("invalid host/kpi: " + ip + ":" + port + "/" + kpiName);
+        }
+        for (String part : ips) {
+            if (!part.matches("[0-9]{1,3}")) {
+                throw new IllegalArgumentException("invalid host ip: " + ip);
+            }
+        }
+        return hostName
+            .replaceFirst("%IP0%", ips[0])
+            .replaceFirst("%IP1%", ips[1])
+            .replaceFirst("%IP2%", ips[2])
+            .replaceFirst("%IP3%", ips[3])
+            .replaceFirst("%PORT%", port)
+            .replaceFirst("%KPINAME%", kpiName);
+    }
+
+    /**
+     * 名称用作目录名和文件名, 不允许路径分隔符、".."和正则替换用的'$'
+     */
+    private static boolean isSafeName(String name) {
+        if (name == null || name.length() == 0 || name.equals(".") || name.indexOf("..") >= 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = c > 127 || Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long lastBizUpdate(String bizName, String kpiName) {
+        String whole = wholeName.replaceFirst("%BIZNAME%", bizName).replaceFirst("%KPINAME%", kpiName);
+        if (!bizEngine.exists(whole)) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return bizEngine.last(whole);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static long lastHostUpdate(String host, String kpiName) {
+        int sep = host.lastIndexOf(':');
+        String whole = RrdCommon.hostPath(host.substring(0, sep), host.substring(sep + 1), kpiName);
+        if (!hostEngine.exists(whole)) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return hostEngine.last(whole);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static String createDir(long time, String bizName, String kpiName) throws Exception {
+        String whole = wholeDir;
+        whole = whole.replaceFirst("%BIZNAME%", bizName);
+        if ((bizEngine.getCapabilities() & RrdEngine.CAP_PERSISTENT) != 0) {
+            File file = new File(whole);
+            file.mkdirs();
+        }
         whole = wholeName;
         whole = whole.replaceFirst("%BIZNAME%", bizName).replaceFirst("%KPINAME%", kpiName);
-        file = new File(whole);
-        if (!file.exists()) {
-            create = create
-                .replace("%BIZNAME%", bizName)
-                .replace("%KPINAME%", kpiName)
-                .replace("%TIME%", String.valueOf(time-1));
-            System.out.println(create);
-            if (isOsLinux) {
-                rrd.create(create);
-            } else {
-                RrdCommander.execute(create);
-            }
+        if (!bizEngine.exists(whole)) {
+            bizEngine.create(whole, time - 1, STEP, BIZ_DS, liveRows);
         }
+        return whole;
     }
 
-    private static String calcStartEndTime(long startTime, long endTime) {
-        String startstr = null, endsrt = null;
+    private static long[] calcStartEndTime(long startTime, long endTime) {
         long start = startTime, end = endTime, mod = 0;;
         long nowTime = System.currentTimeMillis() / 1000;
 
@@ -284,20 +640,21 @@ public class RrdCommon {
             mod = n % 10;
             n -= mod;
             if (n < 30) {
-                startstr = "-" + (m + 30) + "s";
-                endsrt = "-" + (n + 30) + "s";
-            } else {                                                                                                                                     
-                startstr = "-" + m + "s"; 
-                endsrt = "-" + n + "s";   
-            }        
+                m += 30;
+                n += 30;
+            }
+            return new long[] {nowTime - m, nowTime - n};
         } else {     
-            startstr = "-330s";       
-            endsrt = "-30s";          
+            return new long[] {nowTime - 330, nowTime - 30};
         }
-        return startstr + "," + endsrt;
     }
 
     public static void main(String[] args) {
+        // java com.ptcs.kpi.RrdCommon migrate [原rrd.live.rows]
+        if (args.length > 0 && "migrate".equals(args[0])) {
+            rrdMigrateLive(args.length > 1 ? Long.parseLong(args[1]) : 144000);
+            return;
+        }
         while (true) {
             try {
                 long now = System.currentTimeMillis() / 1000;                                                                      
@@ -0,0 +1,81 @@
+package com.ptcs.kpi;
+
+/**
+ * RRD存储引擎
+ *
+ * RrdCommon只通过本接口读写RRD文件, 具体实现(JNI rrdtool, rrd4j文件/NIO/内存)由
+ * store.properties中的store.engine选择, 见{@link RrdEngines}. 所有文件步长相同,
+ * 数据源均为GAUGE, 只有一个AVERAGE归档.
+ */
+public interface RrdEngine {
+
+    /** update可以一次写入多个时间点, 调用方应尽量攒批 */
+    int CAP_BATCH_UPDATE = 1;
+    /** 不同文件的fetch可以在多个线程中并发执行 */
+    int CAP_CONCURRENT_READ = 2;
+    /** 数据写入磁盘, 进程退出后仍然存在 */
+    int CAP_PERSISTENT = 4;
+
+    /**
+     * @return 引擎名称, 与store.engine取值相同
+     */
+    String getName();
+
+    /**
+     * @return CAP_*的组合
+     */
+    int getCapabilities();
+
+    /**
+     * @Title: exists
+     * @Description: 判断RRD是否已创建
+     * @param @param path -- RRD文件
+     */
+    boolean exists(String path);
+
+    /**
+     * @Title: create
+     * @Description: 创建RRD, 文件已存在时覆盖
+     * @param @param path   -- RRD文件
+     * @param @param start  -- 开始时间[s], 第一次更新须晚于该时间
+     * @param @param step   -- 步长[s]
+     * @param @param dsNames-- 数据源名称
+     * @param @param rows   -- 保留行数
+     */
+    void create(String path, long start, long step, String[] dsNames, long rows) throws RrdException;
+
+    /**
+     * @Title: update
+     * @Description: 按时间升序写入count个时间点
+     * @param @param path  -- RRD文件
+     * @param @param times -- 时间戳[s]
+     * @param @param values-- 按 行*数据源个数+数据源编号 存放, 长度为times.length*数据源个数
+     * @param @param count -- 时间点个数
+     */
+    void update(String path, long[] times, double[] values, int count) throws RrdException;
+
+    /**
+     * @Title: fetch
+     * @Description: 读取AVERAGE归档
+     * @param @param path      -- RRD文件
+     * @param @param start     -- 开始时间(时间戳[s])
+     * @param @param end       -- 结束时间(时间戳[s])
+     * @param @param resolution-- 分辨率[s]
+     * @return 返回数据, 时间戳与rrdtool fetch输出一致
+     */
+    RrdRows fetch(String path, long start, long end, long resolution) throws RrdException;
+
+    /**
+     * @Title: last
+     * @Description: 获取最后更新时间
+     * @param @param path -- RRD文件
+     * @return 时间戳[s]
+     */
+    long last(String path) throws RrdException;
+
+    /**
+     * @Title: close
+     * @Description: 关闭引擎打开的文件
+     */
+    void close();
+}
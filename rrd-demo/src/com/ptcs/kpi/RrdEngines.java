@@ -0,0 +1,49 @@
+package com.ptcs.kpi;
+
+/**
+ * 存储引擎工厂
+ *
+ * 引擎名称:
+ *   jni        -- JNI rrdtool, 需要libjrrd.so, 只在Linux下可用
+ *   rrd4j-file -- rrd4j, RandomAccessFile读写
+ *   rrd4j-nio  -- rrd4j, 内存映射读写, 需要JDK 8及以下
+ *   memory     -- rrd4j内存后端, 数据不落盘
+ *   auto       -- Linux下为jni, 其他系统JDK 8及以下为rrd4j-nio, JDK 9+为rrd4j-file
+ */
+public class RrdEngines {
+
+    public static final String[] NAMES = {"jni", "rrd4j-file", "rrd4j-nio", "memory"};
+
+    private static final int MAX_OPEN = 256;
+
+    private RrdEngines() {
+    }
+
+    /**
+     * @Title: create
+     * @Description: 按名称创建存储引擎
+     * @param @param name  -- 引擎名称
+     * @param @param daemon-- rrdcached地址, 只对jni有效, null表示不使用
+     * @return 存储引擎
+     */
+    public static RrdEngine create(String name, String daemon) {
+        if ("auto".equals(name)) {
+            if ("Linux".equals(System.getProperty("os.name"))) {
+                name = "jni";
+            } else {
+                // rrd4j 2.0.6的NIO后端关闭文件时访问sun.nio.ch.DirectBuffer, JDK 9+会失败
+                name = System.getProperty("java.specification.version").startsWith("1.") ? "rrd4j-nio" : "rrd4j-file";
+            }
+        }
+        if ("jni".equals(name)) {
+            return new RrdJniEngine(name, daemon);
+        } else if ("rrd4j-file".equals(name)) {
+            return new Rrd4jEngine(name, "FILE", MAX_OPEN);
+        } else if ("rrd4j-nio".equals(name)) {
+            return new Rrd4jEngine(name, "NIO", MAX_OPEN);
+        } else if ("memory".equals(name)) {
+            return new Rrd4jEngine(name, "MEMORY", MAX_OPEN);
+        }
+        throw new IllegalArgumentException("unknown store engine " + name);
+    }
+}
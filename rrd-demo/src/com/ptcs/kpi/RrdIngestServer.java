@@ -0,0 +1,823 @@
+package com.ptcs.kpi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KPI数据网络写入服务
+ *
+ * 采集端通过TCP按行发送数据, 字段以空格分隔:
+ *   业务数据: biz kpi timestamp normal normalAlert importantAlert urgentAlert
+ *   主机数据: host ip port kpi timestamp value
+ * 一个选择器线程负责读取和解析(不为每行分配对象), 解析结果按批交给写入线程调用RrdCommon.
+ * 每个连接最多BATCHES_PER_CONNECTION个批次在途, 写入跟不上时暂停读取该连接(反压).
+ * 格式错误、迟到被丢弃或写入失败的行回复 "ERR 行号\n"; 每批写入后回复 "OK 行号\n", 表示该连接
+ * 到此行为止除回复过ERR的行外都已被接受, 写入失败的ERR总在覆盖该行的OK之前发送.
+ * 业务和主机数据先进入RrdCommon的重排缓冲(reorder.lateness), 回复OK时可能还没有写入磁盘;
+ * 之后从缓冲写入RRD失败的样本无法再回复, 只计入RrdCommon.getFailedCount.
+ * 名称用作RRD文件路径, 只允许字母、数字、'_'、'-'、'.'和非ASCII字符, 不允许".."; IP必须是
+ * 四段数字, 端口必须是数字, 否则按格式错误处理. 服务没有认证, 默认只监听本机回环地址.
+ *
+ * 用法: java com.ptcs.kpi.RrdIngestServer [key=value ...]
+ *   bind=127.0.0.1                   -- 监听地址, 0.0.0.0表示所有网卡
+ *   port=9099 report=10              -- 监听端口, 统计输出间隔[s]
+ *   bench=true clients=4 lines=1000000 sink=null
+ *                                    -- 本机回环压测, sink=null时不写RRD只测协议吞吐
+ */
+public class RrdIngestServer {
+
+    /**
+     * 解析后的数据写入目标
+     */
+    public interface Writer {
+        /**
+         * @return false表示写入失败, 该行回复ERR
+         */
+        boolean writeBiz(long time, String bizName, String kpiName,
+                double normal, double normalAlert, double importantAlert, double urgentAlert);
+
+        /**
+         * @return false表示写入失败, 该行回复ERR
+         */
+        boolean writeHost(long time, String ip, String port, String kpiName, double value);
+    }
+
+    public static final Writer RRD_WRITER = new Writer() {
+        public boolean writeBiz(long time, String bizName, String kpiName,
+                double normal, double normalAlert, double importantAlert, double urgentAlert) {
+            return RrdCommon.rrdWriteBizData(time, bizName, kpiName, normal, normalAlert, importantAlert, urgentAlert);
+        }
+
+        public boolean writeHost(long time, String ip, String port, String kpiName, double value) {
+            return RrdCommon.rrdWriteHostData(time, ip, port, kpiName, value);
+        }
+    };
+
+    private static final int BATCH_SIZE = 512;
+    private static final int BATCHES_PER_CONNECTION = 2;
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int ACK_BUFFER = 4 * 1024;
+    private static final int MAX_FIELDS = 8;
+    private static final int MAX_NAME = 128;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * 一批解析后的数据, 复用不重新分配
+     */
+    private static class Batch {
+        final Connection conn;
+        int size;
+        long lastLine;
+        final long[] lines = new long[BATCH_SIZE];
+        final boolean[] host = new boolean[BATCH_SIZE];
+        final long[] times = new long[BATCH_SIZE];
+        final String[] names = new String[BATCH_SIZE * 3];
+        final double[] values = new double[BATCH_SIZE * 4];
+
+        Batch(Connection conn) {
+            this.conn = conn;
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final ByteBuffer out = ByteBuffer.allocate(ACK_BUFFER);
+        final ConcurrentLinkedQueue<Batch> free = new ConcurrentLinkedQueue<Batch>();
+        // 写入线程写入失败的行号, 由选择器线程回复ERR
+        final ConcurrentLinkedQueue<Long> failedLines = new ConcurrentLinkedQueue<Long>();
+        Batch current;
+        long lineNo;
+        volatile long ackedLine;
+        long sentAck;
+        boolean eof;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            for (int i = 0; i < BATCHES_PER_CONNECTION; i++) {
+                free.add(new Batch(this));
+            }
+        }
+    }
+
+    private final Writer writer;
+    private final String bindAddress;
+    private final int port;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private volatile boolean running;
+    private final BlockingQueue<Batch> writeQueue = new LinkedBlockingQueue<Batch>();
+    private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicLong acceptedLines = new AtomicLong();
+    private final AtomicLong rejectedLines = new AtomicLong();
+    private volatile int connections;
+
+    // 选择器线程内复用的解析状态
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private final NameCache names = new NameCache();
+
+    public RrdIngestServer(int port, Writer writer) {
+        this("127.0.0.1", port, writer);
+    }
+
+    /**
+     * @param bindAddress-- 监听地址, 0.0.0.0表示所有网卡
+     * @param port       -- 监听端口, 0表示任意端口
+     * @param writer     -- 写入目标
+     */
+    public RrdIngestServer(String bindAddress, int port, Writer writer) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.writer = writer;
+    }
+
+    /**
+     * @Title: start
+     * @Description: 启动选择器线程和写入线程
+     * @return 实际监听的端口
+     */
+    public synchronized int start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(bindAddress, port));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        Thread io = new Thread("rrd-ingest-io") {
+            public void run() {
+                selectLoop();
+            }
+        };
+        Thread write = new Thread("rrd-ingest-write") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        io.setDaemon(true);
+        write.setDaemon(true);
+        io.start();
+        write.start();
+        return server.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public long getAcceptedLines() {
+        return acceptedLines.get();
+    }
+
+    public long getRejectedLines() {
+        return rejectedLines.get();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection conn;
+                while ((conn = completed.poll()) != null) {
+                    try {
+                        service(conn);
+                    } catch (IOException e) {
+                        close(conn);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            conn = (Connection) key.attachment();
+                            if (key.isReadable() && conn.channel.read(conn.in) < 0) {
+                                conn.eof = true;
+                            }
+                            service(conn);
+                        }
+                    } catch (IOException e) {
+                        close((Connection) key.attachment());
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            connections++;
+        }
+    }
+
+    /**
+     * 回复确认, 解析已读取的数据, 发送回复; 回复缓冲区发送完后继续解析
+     */
+    private void service(Connection conn) throws IOException {
+        if (!conn.channel.isOpen()) {
+            return;
+        }
+        while (true) {
+            // 先读取确认行号再取失败行, 保证确认范围内的ERR都在OK之前发送
+            long acked = conn.ackedLine;
+            Long failed;
+            while (conn.out.remaining() >= 24 && (failed = conn.failedLines.poll()) != null) {
+                putErr(conn.out, failed.longValue());
+            }
+            if (acked > conn.sentAck && conn.failedLines.isEmpty() && conn.out.remaining() >= 24) {
+                conn.sentAck = acked;
+                conn.out.put((byte) 'O').put((byte) 'K').put((byte) ' ');
+                putLong(conn.out, conn.sentAck);
+                conn.out.put((byte) '\n');
+            }
+            boolean blocked = parse(conn);
+            flush(conn);
+            boolean replies = !conn.failedLines.isEmpty() || conn.ackedLine > conn.sentAck;
+            if (!(blocked || replies) || conn.out.position() > 0) {
+                break;
+            }
+        }
+        if (conn.eof) {
+            closeIfIdle(conn);
+        }
+    }
+
+    /**
+     * 解析缓冲区中的完整行, 批次用完或回复缓冲区满时暂停读取
+     * @return 是否因回复缓冲区满而暂停
+     */
+    private boolean parse(Connection conn) throws IOException {
+        ByteBuffer in = conn.in;
+        byte[] buf = in.array();
+        int pos = 0, limit = in.position();
+        boolean paused = false, blocked = false;
+        while (pos < limit) {
+            if (conn.current == null) {
+                conn.current = conn.free.poll();
+            }
+            if (conn.current == null || conn.out.remaining() < 32) {
+                paused = true;
+                blocked = conn.current != null;
+                break;
+            }
+            int eol = pos;
+            while (eol < limit && buf[eol] != '\n') {
+                eol++;
+            }
+            if (eol == limit) {
+                break;
+            }
+            conn.lineNo++;
+            int end = eol > pos && buf[eol - 1] == '\r' ? eol - 1 : eol;
+            if (end > pos) {
+                if (parseLine(buf, pos, end, conn.current)) {
+                    conn.current.lines[conn.current.size - 1] = conn.lineNo;
+                } else {
+                    rejectedLines.incrementAndGet();
+                    putErr(conn.out, conn.lineNo);
+                }
+            }
+            conn.current.lastLine = conn.lineNo;
+            pos = eol + 1;
+            if (conn.current.size == BATCH_SIZE) {
+                submit(conn);
+            }
+        }
+        if (conn.current != null && conn.current.size > 0) {
+            submit(conn);
+        } else if (conn.current != null) {
+            // 空批次(只有空行或错误行)放回, 否则连接关闭时批次数不齐
+            conn.free.add(conn.current);
+            conn.current = null;
+        }
+        if (conn.eof && !paused) {
+            // 对端已关闭, 末尾没有换行的不完整行丢弃
+            pos = limit;
+        }
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        in.position(limit - pos);
+        if (!in.hasRemaining() && !paused) {
+            // 单行超过缓冲区大小
+            throw new IOException("line too long");
+        }
+        int ops = conn.key.interestOps() & SelectionKey.OP_WRITE;
+        if (!paused && !conn.eof) {
+            ops |= SelectionKey.OP_READ;
+        }
+        conn.key.interestOps(ops);
+        return blocked;
+    }
+
+    private void submit(Connection conn) {
+        writeQueue.add(conn.current);
+        conn.current = null;
+    }
+
+    private void flush(Connection conn) throws IOException {
+        if (conn.out.position() > 0) {
+            conn.out.flip();
+            conn.channel.write(conn.out);
+            conn.out.compact();
+        }
+        if (conn.out.position() > 0) {
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void closeIfIdle(Connection conn) throws IOException {
+        if (conn.free.size() == BATCHES_PER_CONNECTION && conn.out.position() == 0
+                && conn.sentAck == conn.ackedLine && conn.failedLines.isEmpty()) {
+            close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn == null || !conn.channel.isOpen()) {
+            return;
+        }
+        try {
+            conn.key.cancel();
+            conn.channel.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+        connections--;
+    }
+
+    private void writeLoop() {
+        while (running) {
+            Batch batch;
+            try {
+                batch = writeQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) {
+                continue;
+            }
+            Connection conn = batch.conn;
+            int failed = 0;
+            for (int i = 0; i < batch.size; i++) {
+                boolean ok;
+                try {
+                    if (batch.host[i]) {
+                        ok = writer.writeHost(batch.times[i], batch.names[i * 3], batch.names[i * 3 + 1],
+                                batch.names[i * 3 + 2], batch.values[i * 4]);
+                    } else {
+                        ok = writer.writeBiz(batch.times[i], batch.names[i * 3], batch.names[i * 3 + 1],
+                                batch.values[i * 4], batch.values[i * 4 + 1],
+                                batch.values[i * 4 + 2], batch.values[i * 4 + 3]);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+                if (!ok) {
+                    failed++;
+                    conn.failedLines.add(Long.valueOf(batch.lines[i]));
+                }
+            }
+            acceptedLines.addAndGet(batch.size - failed);
+            rejectedLines.addAndGet(failed);
+            conn.ackedLine = batch.lastLine;
+            batch.size = 0;
+            conn.free.add(batch);
+            completed.add(conn);
+            selector.wakeup();
+        }
+    }
+
+    private boolean parseLine(byte[] buf, int start, int end, Batch batch) {
+        int count = 0, pos = start;
+        while (pos < end) {
+            while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+                pos++;
+            }
+            if (pos == end) {
+                break;
+            }
+            if (count == MAX_FIELDS) {
+                return false;
+            }
+            fieldStart[count] = pos;
+            while (pos < end && buf[pos] != ' ' && buf[pos] != '\t') {
+                pos++;
+            }
+            fieldEnd[count++] = pos;
+        }
+        int i = batch.size;
+        try {
+            if (count == 6 && fieldEnd[0] - fieldStart[0] == 4 && buf[fieldStart[0]] == 'h'
+                    && buf[fieldStart[0] + 1] == 'o' && buf[fieldStart[0] + 2] == 's' && buf[fieldStart[0] + 3] == 't') {
+                if (!isIp(buf, fieldStart[1], fieldEnd[1]) || !isPort(buf, fieldStart[2], fieldEnd[2])
+                        || !isName(buf, fieldStart[3], fieldEnd[3])) {
+                    return false;
+                }
+                batch.times[i] = parseLong(buf, fieldStart[4], fieldEnd[4]);
+                batch.values[i * 4] = parseDouble(buf, fieldStart[5], fieldEnd[5]);
+                batch.host[i] = true;
+                batch.names[i * 3] = names.get(buf, fieldStart[1], fieldEnd[1]);
+                batch.names[i * 3 + 1] = names.get(buf, fieldStart[2], fieldEnd[2]);
+                batch.names[i * 3 + 2] = names.get(buf, fieldStart[3], fieldEnd[3]);
+            } else if (count == 7) {
+                if (!isName(buf, fieldStart[0], fieldEnd[0]) || !isName(buf, fieldStart[1], fieldEnd[1])) {
+                    return false;
+                }
+                batch.times[i] = parseLong(buf, fieldStart[2], fieldEnd[2]);
+                for (int j = 0; j < 4; j++) {
+                    batch.values[i * 4 + j] = parseDouble(buf, fieldStart[3 + j], fieldEnd[3 + j]);
+                }
+                batch.host[i] = false;
+                batch.names[i * 3] = names.get(buf, fieldStart[0], fieldEnd[0]);
+                batch.names[i * 3 + 1] = names.get(buf, fieldStart[1], fieldEnd[1]);
+                batch.names[i * 3 + 2] = null;
+            } else {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        batch.size++;
+        return true;
+    }
+
+    /**
+     * 名称用作目录名和文件名, 只允许字母、数字、'_'、'-'、'.'和UTF-8多字节字符, 不允许"."和".."
+     */
+    private static boolean isName(byte[] buf, int start, int end) {
+        if (start == end || end - start > MAX_NAME) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int b = buf[i];
+            boolean ok = b < 0 || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '_' || b == '-' || b == '.';
+            if (!ok || (b == '.' && i > start && buf[i - 1] == '.')) {
+                return false;
+            }
+        }
+        return !(end - start == 1 && buf[start] == '.');
+    }
+
+    /**
+     * 四段0-255的数字
+     */
+    private static boolean isIp(byte[] buf, int start, int end) {
+        int parts = 0, pos = start;
+        while (pos <= end) {
+            int partStart = pos, value = 0;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9' && pos - partStart < 3) {
+                value = value * 10 + (buf[pos] - '0');
+                pos++;
+            }
+            if (pos == partStart || value > 255 || ++parts > 4) {
+                return false;
+            }
+            if (pos == end) {
+                break;
+            }
+            if (buf[pos] != '.') {
+                return false;
+            }
+            pos++;
+        }
+        return parts == 4 && pos == end;
+    }
+
+    private static boolean isPort(byte[] buf, int start, int end) {
+        if (start == end || end - start > 5) {
+            return false;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+            value = value * 10 + (buf[i] - '0');
+        }
+        return value <= 65535;
+    }
+
+    private static long parseLong(byte[] buf, int start, int end) {
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException();
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    /**
+     * 解析[-]整数[.小数], 有效数字不超过15位时不分配对象, 其他格式(指数, NaN)交给Double.parseDouble
+     */
+    private static double parseDouble(byte[] buf, int start, int end) {
+        int pos = start;
+        boolean negative = pos < end && buf[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean dot = false, any = false;
+        for (; pos < end; pos++) {
+            int b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                any = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (dot) {
+                    scale++;
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (pos < end || !any || digits > 15 || scale > 15) {
+            return Double.parseDouble(new String(buf, start, end - start, UTF8));
+        }
+        double value = mantissa / POW10[scale];
+        return negative ? -value : value;
+    }
+
+    private static void putErr(ByteBuffer out, long line) {
+        out.put((byte) 'E').put((byte) 'R').put((byte) 'R').put((byte) ' ');
+        putLong(out, line);
+        out.put((byte) '\n');
+    }
+
+    private static void putLong(ByteBuffer out, long value) {
+        if (value >= 10) {
+            putLong(out, value / 10);
+        }
+        out.put((byte) ('0' + value % 10));
+    }
+
+    /**
+     * 业务名/KPI名/IP缓存, 同名只创建一次String
+     */
+    private static class NameCache {
+        private static final int MAX_ENTRIES = 1 << 20;
+        private byte[][] keys = new byte[4096][];
+        private String[] values = new String[4096];
+        private int size;
+
+        String get(byte[] buf, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buf[i];
+            }
+            int mask = keys.length - 1;
+            int idx = (hash ^ (hash >>> 16)) & mask;
+            while (keys[idx] != null) {
+                if (equals(keys[idx], buf, start, end)) {
+                    return values[idx];
+                }
+                idx = (idx + 1) & mask;
+            }
+            byte[] key = new byte[end - start];
+            System.arraycopy(buf, start, key, 0, key.length);
+            String value = new String(key, UTF8);
+            if (size >= MAX_ENTRIES) {
+                keys = new byte[4096][];
+                values = new String[4096];
+                size = 0;
+            } else if (size * 2 >= keys.length) {
+                rehash();
+            }
+            put(key, value, hash);
+            return value;
+        }
+
+        private void put(byte[] key, String value, int hash) {
+            int mask = keys.length - 1;
+            int idx = (hash ^ (hash >>> 16)) & mask;
+            while (keys[idx] != null) {
+                idx = (idx + 1) & mask;
+            }
+            keys[idx] = key;
+            values[idx] = value;
+            size++;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int hash = 0;
+                    for (int j = 0; j < oldKeys[i].length; j++) {
+                        hash = 31 * hash + oldKeys[i][j];
+                    }
+                    put(oldKeys[i], oldValues[i], hash);
+                }
+            }
+        }
+
+        private static boolean equals(byte[] key, byte[] buf, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 9099, report = 10, clients = 4;
+        String bind = "127.0.0.1";
+        long lines = 1000000;
+        boolean bench = false;
+        String sink = null;
+        for (String arg : args) {
+            int pos = arg.indexOf('=');
+            if (pos < 0) {
+                throw new IllegalArgumentException("invalid argument " + arg + ", key=value expected");
+            }
+            String key = arg.substring(0, pos), value = arg.substring(pos + 1);
+            if (key.equals("bind")) { bind = value; }
+            else if (key.equals("port")) { port = Integer.parseInt(value); }
+            else if (key.equals("report")) { report = Integer.parseInt(value); }
+            else if (key.equals("bench")) { bench = Boolean.parseBoolean(value); }
+            else if (key.equals("clients")) { clients = Integer.parseInt(value); }
+            else if (key.equals("lines")) { lines = Long.parseLong(value); }
+            else if (key.equals("sink")) { sink = value; }
+            else { throw new IllegalArgumentException("unknown option " + key); }
+        }
+        if (sink == null) {
+            sink = bench ? "null" : "rrd";
+        }
+        Writer writer = RRD_WRITER;
+        if (sink.equals("null")) {
+            writer = new Writer() {
+                public boolean writeBiz(long time, String bizName, String kpiName,
+                        double normal, double normalAlert, double importantAlert, double urgentAlert) {
+                    return true;
+                }
+
+                public boolean writeHost(long time, String ip, String port, String kpiName, double value) {
+                    return true;
+                }
+            };
+        }
+        final RrdIngestServer ingest = new RrdIngestServer(bench ? "127.0.0.1" : bind, bench ? 0 : port, writer);
+        int bound = ingest.start();
+        System.out.println("ingest listening on " + (bench ? "127.0.0.1" : bind) + ":" + bound + ", sink " + sink);
+        if (bench) {
+            bench(bound, clients, lines);
+            ingest.stop();
+            return;
+        }
+        long last = 0;
+        while (true) {
+            Thread.sleep(report * 1000L);
+            long total = ingest.getAcceptedLines();
+            System.out.println(String.format("ingest: lines/s=%.0f total=%d rejected=%d connections=%d",
+                    (total - last) / (double) report, total, ingest.getRejectedLines(), ingest.connections));
+            last = total;
+        }
+    }
+
+    /**
+     * 本机回环压测: 每个客户端发送lines行, 等待全部确认后统计每秒写入行数
+     */
+    private static void bench(final int port, int clients, final long lines) throws Exception {
+        Thread[] threads = new Thread[clients];
+        final long[] acked = new long[clients];
+        long begin = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int id = i;
+            threads[i] = new Thread("rrd-ingest-client-" + i) {
+                public void run() {
+                    try {
+                        acked[id] = benchClient(port, id, lines);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < clients; i++) {
+            threads[i].join();
+            total += acked[i];
+        }
+        double sec = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format("bench: clients=%d acked=%d lines in %.2fs, %.0f lines/s",
+                clients, total, sec, total / sec));
+    }
+
+    private static long benchClient(int port, int id, long lines) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < 1000; k++) {
+            long time = 1500000000L + (k / 50) * 60;
+            if (k % 10 == 9) {
+                sb.append("host 10.0.").append(id).append('.').append(k % 5).append(" 80 cpu ")
+                    .append(time).append(" 37.5\n");
+            } else {
+                sb.append("biz").append(id).append(" kpi").append(k % 50).append(' ').append(time)
+                    .append(" 1.5 2 0 0.25\n");
+            }
+        }
+        byte[] chunk = sb.toString().getBytes(UTF8);
+        final long target = (lines + 999) / 1000 * 1000;
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        final long[] acked = new long[1];
+        Thread reader = new Thread("rrd-ingest-ack-" + id) {
+            public void run() {
+                ByteBuffer in = ByteBuffer.allocate(4096);
+                long value = 0;
+                boolean ok = false;
+                try {
+                    while (acked[0] < target && channel.read(in) >= 0) {
+                        in.flip();
+                        while (in.hasRemaining()) {
+                            byte b = in.get();
+                            if (b == 'O') {
+                                ok = true;
+                                value = 0;
+                            } else if (b >= '0' && b <= '9') {
+                                value = value * 10 + (b - '0');
+                            } else if (b == '\n') {
+                                if (ok) {
+                                    acked[0] = value;
+                                }
+                                ok = false;
+                                value = 0;
+                            }
+                        }
+                        in.clear();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        ByteBuffer out = ByteBuffer.wrap(chunk);
+        for (long sent = 0; sent < target; sent += 1000) {
+            out.rewind();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        reader.join();
+        channel.close();
+        return acked[0];
+    }
+}
@@ -0,0 +1,92 @@
+package com.ptcs.kpi;
+
+import java.io.File;
+
+/**
+ * JNI rrdtool存储引擎
+ *
+ * 把操作拼成rrdtool命令交给{@link Rrd}执行. Rrd是单例且所有方法同步, 命令逐条执行,
+ * 因此不支持并发读取. 一条update命令可以带多个时间点. 指定daemon时update和fetch
+ * 经rrdcached执行, 由rrdcached合并写入.
+ */
+public class RrdJniEngine implements RrdEngine {
+
+    private final String name;
+    private final String daemon;
+    private final Rrd rrd;
+
+    /**
+     * @param name  -- 引擎名称
+     * @param daemon-- rrdcached地址, 如unix:/tmp/rrdcached.sock, null表示直接读写文件
+     */
+    public RrdJniEngine(String name, String daemon) {
+        this.name = name;
+        this.daemon = daemon == null || daemon.length() == 0 ? "" : "--daemon " + daemon + " ";
+        this.rrd = Rrd.getInstance();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapabilities() {
+        return CAP_BATCH_UPDATE | CAP_PERSISTENT;
+    }
+
+    public boolean exists(String path) {
+        return new File(path).exists();
+    }
+
+    public void create(String path, long start, long step, String[] dsNames, long rows) throws RrdException {
+        StringBuilder create = new StringBuilder("create ");
+        create.append(path).append(" --start ").append(start).append(" --step ").append(step);
+        for (String dsName : dsNames) {
+            create.append(" DS:").append(dsName).append(":GAUGE:").append(step * 3 / 2).append(":U:U");
+        }
+        create.append(" RRA:AVERAGE:0.5:1:").append(rows);
+        rrd.create(create.toString());
+    }
+
+    public void update(String path, long[] times, double[] values, int count) throws RrdException {
+        if (count == 0) {
+            return;
+        }
+        int dsCount = values.length / times.length;
+        StringBuilder update = new StringBuilder("update ");
+        update.append(daemon).append(path);
+        for (int i = 0; i < count; i++) {
+            update.append(' ').append(times[i]);
+            for (int j = 0; j < dsCount; j++) {
+                double value = values[i * dsCount + j];
+                update.append(':');
+                if (Double.isNaN(value)) {
+                    update.append('U');
+                } else {
+                    update.append(value);
+                }
+            }
+        }
+        rrd.update(update.toString());
+    }
+
+    public RrdRows fetch(String path, long start, long end, long resolution) throws RrdException {
+        Rrd.FetchData data = rrd.fetch("fetch " + daemon + path + " AVERAGE --start " + start
+            + " --end " + end + " --resolution " + resolution);
+        RrdRows rows = new RrdRows(data.getColCount(), data.getRowCount());
+        double[] row = new double[data.getColCount()];
+        for (int i = 0; i < data.getRowCount(); i++) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = data.getValue(i, j);
+            }
+            rows.add(data.getTimestamp(i), row, 0);
+        }
+        return rows;
+    }
+
+    public long last(String path) throws RrdException {
+        return rrd.last("last " + path);
+    }
+
+    public void close() {
+    }
+}
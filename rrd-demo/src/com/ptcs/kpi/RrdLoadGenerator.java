@@ -0,0 +1,417 @@
+package com.ptcs.kpi;
+
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.GarbageCollectorMXBean;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rrd4j.core.Util;
+
+/**
+ * KPI写入压测工具
+ *
+ * 模拟 biz个业务 x kpi个KPI 的业务数据, 以及 hosts台主机 x hostKpi个KPI 的主机数据,
+ * 按真实时间或加速时间每分钟写入一次, 同时由fetchers个线程模拟仪表盘查询.
+ * 通过{@link RrdEngine}在临时目录下读写, 与RrdCommon使用同样的文件格式.
+ * 定期输出写入速率、查询延迟分位数、GC、文件句柄数和磁盘写入量, GC、句柄数和写入量都是
+ * 相对本引擎开始运行时的增量, 不包含之前运行的引擎.
+ * 指定多个引擎时依次用相同的随机种子运行同样的负载, 最后输出对比.
+ *
+ * 用法: java com.ptcs.kpi.RrdLoadGenerator [key=value ...]
+ *   biz=5 kpi=10 hosts=5 hostKpi=4  -- 规模
+ *   minutes=1440                     -- 模拟时长[分钟]
+ *   speed=0                          -- 0:不限速, 1:真实时间, n:n倍加速
+ *   fetchers=1 fetchRate=50          -- 查询线程数, 每线程每秒查询次数(0不限)
+ *   fetchWindow=600                  -- 每次查询的时间范围[s]
+ *   rows=144000                      -- RRA行数
+ *   report=10                        -- 报告间隔[s]
+ *   engine=                          -- 存储引擎, 逗号分隔, 取值见RrdEngines, 默认rrd4j-nio;
+ *                                       rrd4j 2.0.6的NIO后端不支持JDK9+, 此时默认rrd4j-file
+ *   batch=1                          -- 每次update写入的分钟数, 引擎不支持批量写入时为1
+ *   dir=                             -- 数据目录, 默认临时目录(结束后删除)
+ */
+public class RrdLoadGenerator {
+
+    private static final String[] BIZ_DS = {"NORMAL", "NORMAL_ALERT", "IMPORTANT_ALERT", "URGENT_ALERT"};
+    private static final String[] HOST_DS = {"VALUE"};
+
+    private static final int LATENCY_BUCKETS = 100000;  // 每桶100us, 最大10s
+
+    private int bizCount = 5;
+    private int kpiCount = 10;
+    private int hostCount = 5;
+    private int hostKpiCount = 4;
+    private int minutes = 1440;
+    private double speed = 0;
+    private int fetchers = 1;
+    private int fetchRate = 50;
+    private int fetchWindow = 600;
+    private int rows = 144000;
+    private int report = 10;
+    private String dir;
+    private String engines = System.getProperty("java.specification.version").startsWith("1.") ? "rrd4j-nio" : "rrd4j-file";
+    private int batch = 1;
+    private boolean tempDir;
+
+    private RrdEngine engine;
+    private String[] bizPaths;
+    private String[] hostPaths;
+    private volatile long simTime;
+    private volatile boolean running;
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final int[] latency = new int[LATENCY_BUCKETS];
+    private final int[] totalLatency = new int[LATENCY_BUCKETS];
+
+    public static void main(String[] args) throws Exception {
+        RrdLoadGenerator gen = new RrdLoadGenerator();
+        for (String arg : args) {
+            int pos = arg.indexOf('=');
+            if (pos < 0) {
+                throw new IllegalArgumentException("invalid argument " + arg + ", key=value expected");
+            }
+            gen.set(arg.substring(0, pos), arg.substring(pos + 1));
+        }
+        gen.run();
+    }
+
+    private void set(String key, String value) {
+        if (key.equals("biz")) { bizCount = Integer.parseInt(value); }
+        else if (key.equals("kpi")) { kpiCount = Integer.parseInt(value); }
+        else if (key.equals("hosts")) { hostCount = Integer.parseInt(value); }
+        else if (key.equals("hostKpi")) { hostKpiCount = Integer.parseInt(value); }
+        else if (key.equals("minutes")) { minutes = Integer.parseInt(value); }
+        else if (key.equals("speed")) { speed = Double.parseDouble(value); }
+        else if (key.equals("fetchers")) { fetchers = Integer.parseInt(value); }
+        else if (key.equals("fetchRate")) { fetchRate = Integer.parseInt(value); }
+        else if (key.equals("fetchWindow")) { fetchWindow = Integer.parseInt(value); }
+        else if (key.equals("rows")) { rows = Integer.parseInt(value); }
+        else if (key.equals("report")) { report = Integer.parseInt(value); }
+        else if (key.equals("dir")) { dir = value; }
+        else if (key.equals("engine")) { engines = value; }
+        else if (key.equals("batch")) { batch = Math.max(1, Integer.parseInt(value)); }
+        else { throw new IllegalArgumentException("unknown option " + key); }
+    }
+
+    private void run() throws Exception {
+        if (dir == null) {
+            File tmp = File.createTempFile("rrdload", "");
+            tmp.delete();
+            dir = tmp.getPath();
+            tempDir = true;
+        }
+        List<String> summary = new ArrayList<String>();
+        try {
+            for (String name : engines.split(",")) {
+                engine = RrdEngines.create(name.trim(), null);
+                try {
+                    summary.add(runEngine(dir + "/" + engine.getName()));
+                } finally {
+                    engine.close();
+                }
+            }
+        } finally {
+            if (tempDir) {
+                delete(new File(dir));
+            }
+        }
+        if (summary.size() > 1) {
+            System.out.println("summary:");
+            for (String line : summary) {
+                System.out.println(line);
+            }
+        }
+    }
+
+    private String runEngine(String root) throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        long start = speed > 0 ? Util.normalize(now, 60) : Util.normalize(now - minutes * 60L, 60);
+        int batchSize = (engine.getCapabilities() & RrdEngine.CAP_BATCH_UPDATE) != 0 ? batch : 1;
+        simTime = start;
+        running = true;
+        updates.set(0);
+        fetches.set(0);
+        errors.set(0);
+        Arrays.fill(latency, 0);
+        Arrays.fill(totalLatency, 0);
+        // 进程级计数的基线, 多个引擎依次运行时只统计本引擎的部分
+        long[] baseGc = gcStats();
+        int baseFd = openFiles();
+        long baseWchar = ioStat("wchar:");
+        long baseWrite = ioStat("write_bytes:");
+        int peakFd = baseFd;
+        System.out.println("files: " + (bizCount * kpiCount) + " biz, " + (hostCount * hostKpiCount)
+                + " host, engine " + engine.getName() + " (" + capabilities(engine) + "), batch " + batchSize
+                + ", dir " + root);
+        Thread[] threads = new Thread[fetchers];
+        try {
+            createFiles(root, start);
+
+            for (int i = 0; i < fetchers; i++) {
+                final long seed = i;
+                threads[i] = new Thread("rrd-fetch-" + i) {
+                    public void run() {
+                        fetchLoop(new Random(seed));
+                    }
+                };
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+
+            // 按分钟生成数据, 攒够batchSize分钟写入一次, 随机序列与batch无关
+            Random random = new Random(42);
+            long[] times = new long[batchSize];
+            double[][] bizValues = new double[bizPaths.length][batchSize * BIZ_DS.length];
+            double[][] hostValues = new double[hostPaths.length][batchSize];
+            int pending = 0;
+            long realStart = System.currentTimeMillis();
+            long lastReport = realStart;
+            long lastUpdates = 0, lastFetches = 0;
+            long[] lastGc = baseGc;
+            for (int m = 1; m <= minutes; m++) {
+                long time = start + m * 60L;
+                times[pending] = time;
+                for (int i = 0; i < bizPaths.length; i++) {
+                    for (int j = 0; j < BIZ_DS.length; j++) {
+                        bizValues[i][pending * BIZ_DS.length + j] = random.nextInt(100);
+                    }
+                }
+                for (int i = 0; i < hostPaths.length; i++) {
+                    hostValues[i][pending] = random.nextDouble() * 100;
+                }
+                pending++;
+                if (pending == batchSize || m == minutes) {
+                    for (int i = 0; i < bizPaths.length; i++) {
+                        update(bizPaths[i], times, bizValues[i], pending);
+                    }
+                    for (int i = 0; i < hostPaths.length; i++) {
+                        update(hostPaths[i], times, hostValues[i], pending);
+                    }
+                    pending = 0;
+                    simTime = time;
+                }
+
+                if (speed > 0) {
+                    long due = realStart + (long) (m * 60000L / speed);
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                long nowMs = System.currentTimeMillis();
+                if (nowMs - lastReport >= report * 1000L || m == minutes) {
+                    long[] gc = gcStats();
+                    int fd = openFiles();
+                    peakFd = Math.max(peakFd, fd);
+                    long u = updates.get(), f = fetches.get();
+                    double sec = (nowMs - lastReport) / 1000.0;
+                    int[] hist = snapshotLatency();
+                    System.out.println(String.format(
+                            "t=%ds sim=%dmin updates/s=%.0f fetch/s=%.0f fetch p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms "
+                            + "gc=%d/%dms heap=%dMB fd=%d(%+d) written=%dMB disk=%dMB errors=%d",
+                            (nowMs - realStart) / 1000, m, (u - lastUpdates) / sec, (f - lastFetches) / sec,
+                            percentile(hist, 0.50), percentile(hist, 0.95), percentile(hist, 0.99), percentile(hist, 1.0),
+                            gc[0] - lastGc[0], gc[1] - lastGc[1], usedHeap() >> 20, fd, fd - baseFd,
+                            ioDelta("wchar:", baseWchar) >> 20, ioDelta("write_bytes:", baseWrite) >> 20,
+                            errors.get()));
+                    lastReport = nowMs;
+                    lastUpdates = u;
+                    lastFetches = f;
+                    lastGc = gc;
+                }
+            }
+            running = false;
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            double total = (System.currentTimeMillis() - realStart) / 1000.0;
+            long[] gc = gcStats();
+            int fd = openFiles();
+            peakFd = Math.max(peakFd, fd);
+            String line = String.format(
+                    "%s: %.1fs updates=%d (%.0f/s) fetches=%d (%.0f/s) fetch p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms "
+                    + "gc=%d/%dms fd=%+d peak=%+d written=%dMB disk=%dMB errors=%d",
+                    engine.getName(), total, updates.get(), updates.get() / total, fetches.get(), fetches.get() / total,
+                    percentile(totalLatency, 0.50), percentile(totalLatency, 0.95), percentile(totalLatency, 0.99),
+                    percentile(totalLatency, 1.0), gc[0] - baseGc[0], gc[1] - baseGc[1], fd - baseFd, peakFd - baseFd,
+                    ioDelta("wchar:", baseWchar) >> 20, ioDelta("write_bytes:", baseWrite) >> 20, errors.get());
+            System.out.println(line);
+            return line;
+        } finally {
+            running = false;
+            for (Thread t : threads) {
+                if (t != null) {
+                    t.join();
+                }
+            }
+        }
+    }
+
+    private static String capabilities(RrdEngine engine) {
+        int caps = engine.getCapabilities();
+        StringBuilder sb = new StringBuilder();
+        sb.append((caps & RrdEngine.CAP_BATCH_UPDATE) != 0 ? "batch" : "single");
+        sb.append((caps & RrdEngine.CAP_CONCURRENT_READ) != 0 ? ", concurrent read" : ", serial read");
+        sb.append((caps & RrdEngine.CAP_PERSISTENT) != 0 ? ", persistent" : ", in memory");
+        return sb.toString();
+    }
+
+    private void createFiles(String root, long start) throws RrdException {
+        bizPaths = new String[bizCount * kpiCount];
+        for (int i = 0; i < bizCount; i++) {
+            new File(root + "/ipm/rrd/app/biz" + i).mkdirs();
+            for (int j = 0; j < kpiCount; j++) {
+                String path = root + "/ipm/rrd/app/biz" + i + "/kpi" + j + ".rrd";
+                bizPaths[i * kpiCount + j] = path;
+                engine.create(path, start - 1, 60, BIZ_DS, rows);
+            }
+        }
+        hostPaths = new String[hostCount * hostKpiCount];
+        for (int i = 0; i < hostCount; i++) {
+            String hostDir = root + "/ipm/rrd/interfaces/device.2/hosts/10/0/" + (i >> 8) + "/" + (i & 0xff) + "/80";
+            new File(hostDir).mkdirs();
+            for (int j = 0; j < hostKpiCount; j++) {
+                String path = hostDir + "/kpi" + j + ".rrd";
+                hostPaths[i * hostKpiCount + j] = path;
+                engine.create(path, start - 1, 60, HOST_DS, rows);
+            }
+        }
+    }
+
+    private void update(String path, long[] times, double[] values, int count) {
+        try {
+            engine.update(path, times, values, count);
+            updates.addAndGet(count);
+        } catch (Exception e) {
+            if (errors.incrementAndGet() <= 10) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void fetchLoop(Random random) {
+        long pause = fetchRate > 0 ? 1000 / fetchRate : 0;
+        while (running) {
+            int n = random.nextInt(bizPaths.length + hostPaths.length);
+            String path = n < bizPaths.length ? bizPaths[n] : hostPaths[n - bizPaths.length];
+            long end = simTime;
+            long begin = System.nanoTime();
+            try {
+                engine.fetch(path, end - fetchWindow, end, 60).size();
+                recordLatency(System.nanoTime() - begin);
+                fetches.incrementAndGet();
+            } catch (Exception e) {
+                if (errors.incrementAndGet() <= 10) {
+                    e.printStackTrace();
+                }
+            }
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        int bucket = (int) Math.min(nanos / 100000, LATENCY_BUCKETS - 1);
+        latency[bucket]++;
+        totalLatency[bucket]++;
+    }
+
+    private synchronized int[] snapshotLatency() {
+        int[] hist = latency.clone();
+        Arrays.fill(latency, 0);
+        return hist;
+    }
+
+    private static double percentile(int[] hist, double p) {
+        long count = 0;
+        for (int i = 0; i < hist.length; i++) {
+            count += hist[i];
+        }
+        if (count == 0) {
+            return 0.0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * p));
+        long seen = 0;
+        for (int i = 0; i < hist.length; i++) {
+            seen += hist[i];
+            if (seen >= rank) {
+                return (i + 1) / 10.0;
+            }
+        }
+        return hist.length / 10.0;
+    }
+
+    private static long[] gcStats() {
+        long count = 0, time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, time};
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static int openFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    /**
+     * 读取/proc/self/io中的计数, wchar为write调用写入的字节数, write_bytes为实际落盘的字节数.
+     * 不可用时返回-1
+     */
+    private static long ioStat(String key) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/io"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(key)) {
+                    return Long.parseLong(line.substring(key.length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            // 非Linux或无权限
+        } finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException e) {}
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * /proc/self/io计数相对基线的增量, 不可用时返回-1
+     */
+    private static long ioDelta(String key, long base) {
+        long value = ioStat(key);
+        return value < 0 || base < 0 ? -1 : value - base;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,269 @@
+package com.ptcs.kpi;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RRD更新重排缓冲
+ *
+ * RRD要求每个文件的更新时间严格递增, 同一分钟重复写入或迟到的样本会使update失败.
+ * 每个RRD文件保留lateness秒的缓冲窗口: 窗口内的样本按时间排序, 同一步长内的重复样本按
+ * 合并策略(last/sum/max)合并, 当样本时间落后于该文件最新样本超过lateness秒, 或该文件
+ * lateness秒内没有新样本时, 按时间顺序写入RRD, 因此迟到不超过lateness秒的样本都能写入.
+ * 不晚于已写入时间的样本直接丢弃并计数, 写入失败的样本另外计数.
+ * 每个文件以两个名称为键(业务数据为业务/KPI, 主机数据为ip:port/KPI), 数据源个数在创建时指定.
+ */
+public class RrdReorderBuffer {
+
+    public static final int POLICY_LAST = 0;
+    public static final int POLICY_SUM = 1;
+    public static final int POLICY_MAX = 2;
+
+    private static final long STEP = 60;
+
+    /**
+     * 缓冲区按时间顺序输出样本的目标
+     */
+    public interface Sink {
+        /**
+         * @return 文件最后更新时间[s], 文件不存在时返回Long.MIN_VALUE
+         */
+        long last(String bizName, String kpiName);
+
+        /**
+         * 按时间升序写入count个时间点, values按 行*数据源个数+数据源编号 存放, 调用返回后数组会被复用
+         * @return false表示写入失败
+         */
+        boolean write(String bizName, String kpiName, long[] times, double[] values, int count);
+    }
+
+    /**
+     * 单个RRD文件的待写入样本, 按时间升序存放
+     */
+    private class Pending {
+        final String bizName;
+        final String kpiName;
+        long lastWritten;
+        long maxSeen = Long.MIN_VALUE;
+        long lastArrival;
+        int size;
+        long[] times = new long[capacity];
+        double[] values = new double[capacity * dsCount];
+
+        Pending(String bizName, String kpiName, long lastWritten) {
+            this.bizName = bizName;
+            this.kpiName = kpiName;
+            this.lastWritten = lastWritten;
+        }
+
+        synchronized boolean add(long time, double[] sample) {
+            if (time <= lastWritten) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            boolean ok = true;
+            lastArrival = System.currentTimeMillis();
+            int pos = 0;
+            while (pos < size && times[pos] < time) {
+                pos++;
+            }
+            if (pos < size && times[pos] == time) {
+                merge(pos, sample);
+                mergedCount.incrementAndGet();
+            } else if (size == capacity && pos == 0) {
+                // 缓冲已满且样本早于所有待写入样本, 直接写入
+                if (!sink.write(bizName, kpiName, new long[] {time}, sample, 1)) {
+                    failedCount.incrementAndGet();
+                    ok = false;
+                }
+                lastWritten = time;
+            } else {
+                if (size == capacity) {
+                    emit(1);
+                    pos--;
+                }
+                System.arraycopy(times, pos, times, pos + 1, size - pos);
+                System.arraycopy(values, pos * dsCount, values, (pos + 1) * dsCount, (size - pos) * dsCount);
+                times[pos] = time;
+                System.arraycopy(sample, 0, values, pos * dsCount, dsCount);
+                size++;
+            }
+            if (time > maxSeen) {
+                maxSeen = time;
+            }
+            // 落后最新样本正好lateness秒的样本仍可能被更新, 不写入; lateness为0时全部写入
+            long horizon = lateness > 0 ? maxSeen - lateness : maxSeen + 1;
+            int ready = 0;
+            while (ready < size && times[ready] < horizon) {
+                ready++;
+            }
+            emit(ready);
+            return ok;
+        }
+
+        synchronized void flush(long now, boolean force) {
+            if (size > 0 && (force || now - lastArrival >= lateness * 1000)) {
+                emit(size);
+            }
+        }
+
+        private void merge(int pos, double[] sample) {
+            for (int i = 0; i < dsCount; i++) {
+                double old = values[pos * dsCount + i];
+                double val = sample[i];
+                if (policy == POLICY_LAST || Double.isNaN(old)) {
+                    values[pos * dsCount + i] = val;
+                } else if (Double.isNaN(val)) {
+                    continue;
+                } else if (policy == POLICY_SUM) {
+                    values[pos * dsCount + i] = old + val;
+                } else {
+                    values[pos * dsCount + i] = Math.max(old, val);
+                }
+            }
+        }
+
+        private void emit(int count) {
+            if (count == 0) {
+                return;
+            }
+            // 写入失败也推进lastWritten, RRD中可能已写入部分样本, 重写会因时间不递增再次失败
+            if (!sink.write(bizName, kpiName, times, values, count)) {
+                failedCount.addAndGet(count);
+            }
+            lastWritten = times[count - 1];
+            System.arraycopy(times, count, times, 0, size - count);
+            System.arraycopy(values, count * dsCount, values, 0, (size - count) * dsCount);
+            size -= count;
+        }
+    }
+
+    private final Map<String, Pending> pendingMap = new ConcurrentHashMap<String, Pending>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final Sink sink;
+    private final int dsCount;
+    private final long lateness;
+    private final int policy;
+    private final int capacity;
+    private Timer flushTimer;
+
+    /**
+     * 业务数据(普通/普通告警/重要告警/紧急告警)的重排缓冲
+     * @param sink    -- 样本输出目标
+     * @param lateness-- 允许迟到时间[s], 0表示不缓冲
+     * @param policy  -- 重复样本合并策略
+     */
+    public RrdReorderBuffer(Sink sink, long lateness, int policy) {
+        this(sink, 4, lateness, policy);
+    }
+
+    /**
+     * @param sink    -- 样本输出目标
+     * @param dsCount -- 数据源个数
+     * @param lateness-- 允许迟到时间[s], 0表示不缓冲
+     * @param policy  -- 重复样本合并策略
+     */
+    public RrdReorderBuffer(Sink sink, int dsCount, long lateness, int policy) {
+        this.sink = sink;
+        this.dsCount = dsCount;
+        this.lateness = lateness;
+        this.policy = policy;
+        this.capacity = (int) (lateness / STEP) + 2;
+    }
+
+    /**
+     * @Title: parsePolicy
+     * @Description: 解析合并策略名称
+     * @param @param name -- last/sum/max
+     * @return 合并策略
+     */
+    public static int parsePolicy(String name) {
+        if ("sum".equalsIgnoreCase(name)) {
+            return POLICY_SUM;
+        } else if ("max".equalsIgnoreCase(name)) {
+            return POLICY_MAX;
+        } else if ("last".equalsIgnoreCase(name)) {
+            return POLICY_LAST;
+        }
+        throw new IllegalArgumentException("unknown merge policy " + name);
+    }
+
+    /**
+     * @Title: start
+     * @Description: 启动空闲文件定期刷新, 退出前应由调用方执行flush(true)写入全部缓冲样本
+     */
+    public synchronized void start() {
+        if (flushTimer != null || lateness <= 0) {
+            return;
+        }
+        flushTimer = new Timer("rrd-reorder", true);
+        long period = Math.min(lateness, 10) * 1000;
+        flushTimer.schedule(new TimerTask() {
+            public void run() {
+                flush(false);
+            }
+        }, period, period);
+    }
+
+    /**
+     * @Title: add
+     * @Description: 加入一个样本
+     * @param @param time   -- 时间戳[s], 已按60s对齐
+     * @param @param bizName-- 业务名称
+     * @param @param kpiName-- KPI名称
+     * @param @param values -- 各数据源的值, 业务数据为普通/普通告警/重要告警/紧急告警
+     * @return false表示样本早于已写入时间被丢弃, 或直接写入失败; true只表示已接受, 可能仍在缓冲中
+     */
+    public boolean add(long time, String bizName, String kpiName, double[] values) {
+        String key = bizName + "/" + kpiName;
+        Pending pending = pendingMap.get(key);
+        if (pending == null) {
+            synchronized (pendingMap) {
+                pending = pendingMap.get(key);
+                if (pending == null) {
+                    pending = new Pending(bizName, kpiName, sink.last(bizName, kpiName));
+                    pendingMap.put(key, pending);
+                }
+            }
+        }
+        return pending.add(time, values);
+    }
+
+    /**
+     * @Title: flush
+     * @Description: 写入缓冲样本
+     * @param @param force -- true写入全部, false只写入lateness秒内没有新样本的文件
+     */
+    public void flush(boolean force) {
+        long now = System.currentTimeMillis();
+        for (Pending pending : pendingMap.values()) {
+            pending.flush(now, force);
+        }
+    }
+
+    /**
+     * @return 因早于已写入时间而丢弃的样本数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return 写入RRD失败的样本数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return 合并的重复样本数
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+}
@@ -0,0 +1,432 @@
+package com.ptcs.kpi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 业务KPI汇总(rollup)
+ *
+ * 在rrdWriteBizData写入路径上增量维护每个业务/KPI的小时、天汇总(合计与最大值),
+ * 查询时不需要再读取RRD文件. 可以查询单个KPI, 也可以查询一个业务下的所有KPI. 每个KPI只保存:
+ *   最近60分钟的分钟数据(用于最近60分钟窗口)
+ *   最近48小时的小时汇总(当前和前一个自然日、自然小时、最近24小时)
+ * 查询窗口超出保存范围时返回null, 不会返回不完整的结果.
+ * 样本由重排缓冲合并重复、按时间顺序送入, 每分钟只累加一次; 不晚于已汇总时间的样本被丢弃并计数.
+ * 汇总状态定期写入rollup.dat, 启动时自动恢复; 退出时由调用方在写完缓冲数据后调用persist.
+ */
+public class RrdRollup {
+
+    public static final int HOUR = 0;       // 时间所在的自然小时
+    public static final int DAY = 1;        // 时间所在的自然日(本地时区)
+    public static final int LAST_HOUR = 2;  // 截止到时间的最近60分钟
+    public static final int LAST_DAY = 3;   // 时间所在的自然小时及之前23小时
+
+    private static final int DS_COUNT = 4;
+    private static final int MINUTES = 60;
+    private static final int HOURS = 48;
+    // 快照格式变化时修改, 旧格式快照不再恢复
+    private static final int SNAPSHOT_MAGIC = 0x52524c33;
+
+    // 业务名称 -> KPI名称 -> 汇总状态
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Series>> seriesMap =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Series>>();
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static String snapshotPath;
+    private static Timer persistTimer;
+
+    /**
+     * 每个业务/KPI的汇总状态, 所有数组均按槽位*DS_COUNT+数据源编号存放
+     */
+    private static class Series {
+        long latest = Long.MIN_VALUE;
+        long[] minuteTime = new long[MINUTES];
+        double[] minuteValue = new double[MINUTES * DS_COUNT];
+        long[] hourTime = new long[HOURS];
+        double[] hourSum = new double[HOURS * DS_COUNT];
+        double[] hourMax = new double[HOURS * DS_COUNT];
+
+        Series() {
+            Arrays.fill(minuteTime, Long.MIN_VALUE);
+            Arrays.fill(hourTime, Long.MIN_VALUE);
+        }
+
+        synchronized boolean update(long time, double[] values) {
+            if (time <= latest) {
+                return false;
+            }
+            long hour = time - time % 3600;
+            int h = (int) ((hour / 3600) % HOURS);
+            if (hourTime[h] != hour) {
+                hourTime[h] = hour;
+                for (int i = 0; i < DS_COUNT; i++) {
+                    hourSum[h * DS_COUNT + i] = 0.0;
+                    hourMax[h * DS_COUNT + i] = Double.NEGATIVE_INFINITY;
+                }
+            }
+            int m = (int) ((time / 60) % MINUTES);
+            minuteTime[m] = time;
+            for (int i = 0; i < DS_COUNT; i++) {
+                double val = values[i];
+                minuteValue[m * DS_COUNT + i] = val;
+                hourSum[h * DS_COUNT + i] += val;
+                hourMax[h * DS_COUNT + i] = Math.max(hourMax[h * DS_COUNT + i], val);
+            }
+            latest = time;
+            return true;
+        }
+
+        /**
+         * 把[from, to)内的数据累加到sum/max, 窗口超出保存范围时返回false
+         */
+        synchronized boolean aggregate(boolean minutes, long from, long to, double[] sum, double[] max) {
+            if (latest == Long.MIN_VALUE) {
+                return true;
+            }
+            if (minutes) {
+                // 分钟槽位只保存latest之前的60分钟
+                if (from <= latest - 3600) {
+                    return false;
+                }
+                for (int j = 0; j < MINUTES; j++) {
+                    if (minuteTime[j] >= from && minuteTime[j] < to) {
+                        for (int i = 0; i < DS_COUNT; i++) {
+                            sum[i] += minuteValue[j * DS_COUNT + i];
+                            max[i] = Math.max(max[i], minuteValue[j * DS_COUNT + i]);
+                        }
+                    }
+                }
+                return true;
+            }
+            if (from - from % 3600 < latest - latest % 3600 - (HOURS - 1) * 3600L) {
+                return false;
+            }
+            for (int j = 0; j < HOURS; j++) {
+                if (hourTime[j] >= from && hourTime[j] < to) {
+                    for (int i = 0; i < DS_COUNT; i++) {
+                        sum[i] += hourSum[j * DS_COUNT + i];
+                        max[i] = Math.max(max[i], hourMax[j * DS_COUNT + i]);
+                    }
+                }
+            }
+            return true;
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            out.writeLong(latest);
+            writeLongs(out, minuteTime);
+            writeDoubles(out, minuteValue);
+            writeLongs(out, hourTime);
+            writeDoubles(out, hourSum);
+            writeDoubles(out, hourMax);
+        }
+
+        synchronized void read(DataInputStream in) throws IOException {
+            latest = in.readLong();
+            readLongs(in, minuteTime);
+            readDoubles(in, minuteValue);
+            readLongs(in, hourTime);
+            readDoubles(in, hourSum);
+            readDoubles(in, hourMax);
+        }
+    }
+
+    /**
+     * @Title: init
+     * @Description: 恢复汇总快照并启动定期保存
+     * @param @param path    -- 快照文件路径
+     * @param @param interval-- 保存间隔[s], 0表示不保存
+     */
+    public static synchronized void init(String path, long interval) {
+        if (persistTimer != null || interval <= 0) {
+            return;
+        }
+        snapshotPath = path;
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        persistTimer = new Timer("rrd-rollup", true);
+        persistTimer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                persist();
+            }
+        }, interval * 1000, interval * 1000);
+    }
+
+    /**
+     * @Title: update
+     * @Description: 累加一个样本到汇总, NaN按0处理
+     * @param @param time   -- 时间戳[s], 已按60s对齐
+     * @param @param bizName-- 业务名称
+     * @param @param kpiName-- KPI名称
+     * @param @param normal -- 普通
+     * @param @param normalAlert -- 普通告警
+     * @param @param importantAlert-- 重要告警
+     * @param @param urgentAlert-- 紧急告警
+     * @return false表示样本不晚于已汇总的最后时间, 被丢弃
+     */
+    public static boolean update(long time, String bizName, String kpiName,
+            double normal, double normalAlert, double importantAlert, double urgentAlert) {
+        Series series = getSeries(bizName, kpiName);
+        double[] values = new double[] {
+            Double.isNaN(normal) ? 0.0 : normal,
+            Double.isNaN(normalAlert) ? 0.0 : normalAlert,
+            Double.isNaN(importantAlert) ? 0.0 : importantAlert,
+            Double.isNaN(urgentAlert) ? 0.0 : urgentAlert
+        };
+        if (!series.update(time, values)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @Title: rollupSum
+     * @Description: 获取窗口内各告警级别合计
+     * @param @param bizName-- 业务名称
+     * @param @param kpiName-- KPI名称
+     * @param @param window -- HOUR/DAY/LAST_HOUR/LAST_DAY
+     * @param @param time   -- 时间戳[s]
+     * @return 合计, 没有数据或窗口超出保存范围时返回null
+     */
+    public static RrdBizBean rollupSum(String bizName, String kpiName, int window, long time) {
+        return rollup(bizName, kpiName, window, time, false);
+    }
+
+    /**
+     * @Title: rollupMax
+     * @Description: 获取窗口内各告警级别最大值
+     * @param @param bizName-- 业务名称
+     * @param @param kpiName-- KPI名称
+     * @param @param window -- HOUR/DAY/LAST_HOUR/LAST_DAY
+     * @param @param time   -- 时间戳[s]
+     * @return 最大值, 没有数据或窗口超出保存范围时返回null
+     */
+    public static RrdBizBean rollupMax(String bizName, String kpiName, int window, long time) {
+        return rollup(bizName, kpiName, window, time, true);
+    }
+
+    /**
+     * @Title: rollupBizSum
+     * @Description: 获取业务下所有KPI在窗口内各告警级别合计
+     * @param @param bizName-- 业务名称
+     * @param @param window -- HOUR/DAY/LAST_HOUR/LAST_DAY
+     * @param @param time   -- 时间戳[s]
+     * @return 合计, 没有数据或任一KPI的窗口超出保存范围时返回null
+     */
+    public static RrdBizBean rollupBizSum(String bizName, int window, long time) {
+        return rollup(bizName, null, window, time, false);
+    }
+
+    /**
+     * @Title: rollupBizMax
+     * @Description: 获取业务下所有KPI在窗口内各告警级别最大值(各KPI最大值中的最大值)
+     * @param @param bizName-- 业务名称
+     * @param @param window -- HOUR/DAY/LAST_HOUR/LAST_DAY
+     * @param @param time   -- 时间戳[s]
+     * @return 最大值, 没有数据或任一KPI的窗口超出保存范围时返回null
+     */
+    public static RrdBizBean rollupBizMax(String bizName, int window, long time) {
+        return rollup(bizName, null, window, time, true);
+    }
+
+    /**
+     * @Title: getKpiNames
+     * @Description: 获取业务下有汇总数据的KPI名称
+     * @param @param bizName-- 业务名称
+     * @return KPI名称, 没有时返回空列表
+     */
+    public static List<String> getKpiNames(String bizName) {
+        Map<String, Series> kpis = seriesMap.get(bizName);
+        return kpis == null ? new ArrayList<String>() : new ArrayList<String>(kpis.keySet());
+    }
+
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private static Series getSeries(String bizName, String kpiName) {
+        ConcurrentHashMap<String, Series> kpis = seriesMap.get(bizName);
+        if (kpis == null) {
+            kpis = new ConcurrentHashMap<String, Series>();
+            ConcurrentHashMap<String, Series> prev = seriesMap.putIfAbsent(bizName, kpis);
+            if (prev != null) {
+                kpis = prev;
+            }
+        }
+        Series series = kpis.get(kpiName);
+        if (series == null) {
+            series = new Series();
+            Series prev = kpis.putIfAbsent(kpiName, series);
+            if (prev != null) {
+                series = prev;
+            }
+        }
+        return series;
+    }
+
+    /**
+     * kpiName为null时汇总业务下所有KPI
+     */
+    private static RrdBizBean rollup(String bizName, String kpiName, int window, long time, boolean isMax) {
+        Map<String, Series> kpis = seriesMap.get(bizName);
+        if (kpis == null) {
+            return null;
+        }
+        Collection<Series> list;
+        if (kpiName == null) {
+            list = kpis.values();
+        } else {
+            Series series = kpis.get(kpiName);
+            list = series == null ? Collections.<Series>emptyList() : Collections.singletonList(series);
+        }
+        if (list.isEmpty()) {
+            return null;
+        }
+        long from, to;
+        if (window == HOUR) {
+            from = time - time % 3600;
+            to = from + 3600;
+        } else if (window == DAY) {
+            // 按时间所在日期的本地零点计算, 夏令时切换日为23或25小时
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(time * 1000);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            from = cal.getTimeInMillis() / 1000;
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            to = cal.getTimeInMillis() / 1000;
+        } else if (window == LAST_HOUR) {
+            from = time - 3599;
+            to = time + 1;
+        } else {
+            from = time - time % 3600 - 82800;
+            to = time - time % 3600 + 3600;
+        }
+        double[] sum = new double[DS_COUNT];
+        double[] max = new double[DS_COUNT];
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (Series series : list) {
+            if (!series.aggregate(window == LAST_HOUR, from, to, sum, max)) {
+                return null;
+            }
+        }
+        double[] val = isMax ? max : sum;
+        RrdBizBean rbb = new RrdBizBean();
+        rbb.setNormal(Double.isInfinite(val[0]) ? 0.0 : val[0]);
+        rbb.setNormalAlert(Double.isInfinite(val[1]) ? 0.0 : val[1]);
+        rbb.setImportantAlert(Double.isInfinite(val[2]) ? 0.0 : val[2]);
+        rbb.setUrgentAlert(Double.isInfinite(val[3]) ? 0.0 : val[3]);
+        return rbb;
+    }
+
+    /**
+     * @Title: persist
+     * @Description: 保存汇总快照, 未调用init或未启用保存时不做任何事
+     */
+    public static synchronized void persist() {
+        if (snapshotPath == null) {
+            return;
+        }
+        File tmp = new File(snapshotPath + ".tmp");
+        DataOutputStream out = null;
+        try {
+            tmp.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            // 先取出所有KPI, 保存期间新增的KPI不影响写入的个数
+            List<String> keys = new ArrayList<String>();
+            List<Series> values = new ArrayList<Series>();
+            for (Map.Entry<String, ConcurrentHashMap<String, Series>> biz : seriesMap.entrySet()) {
+                for (Map.Entry<String, Series> kpi : biz.getValue().entrySet()) {
+                    keys.add(biz.getKey() + "/" + kpi.getKey());
+                    values.add(kpi.getValue());
+                }
+            }
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeUTF(keys.get(i));
+                values.get(i).write(out);
+            }
+            out.close();
+            out = null;
+            File file = new File(snapshotPath);
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private static void load() throws IOException {
+        File file = new File(snapshotPath);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("invalid rollup snapshot " + snapshotPath);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int sep = key.indexOf('/');
+                getSeries(key.substring(0, sep), key.substring(sep + 1)).read(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] arr) throws IOException {
+        for (int i = 0; i < arr.length; i++) {
+            out.writeLong(arr[i]);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] arr) throws IOException {
+        for (int i = 0; i < arr.length; i++) {
+            out.writeDouble(arr[i]);
+        }
+    }
+
+    private static void readLongs(DataInputStream in, long[] arr) throws IOException {
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = in.readLong();
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double[] arr) throws IOException {
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = in.readDouble();
+        }
+    }
+}
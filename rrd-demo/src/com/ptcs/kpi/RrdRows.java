@@ -0,0 +1,55 @@
+package com.ptcs.kpi;
+
+import java.util.Arrays;
+
+/**
+ * 按时间排列的多数据源数据, 用于存储引擎查询结果和冷数据归档
+ *
+ * values按 行*dsCount+数据源编号 存放, 时间戳与引擎返回的一致, 不做偏移.
+ */
+public class RrdRows {
+    private final int dsCount;
+    private long[] times;
+    private double[] values;
+    private int size;
+
+    public RrdRows(int dsCount, int capacity) {
+        this.dsCount = dsCount;
+        this.times = new long[Math.max(capacity, 1)];
+        this.values = new double[Math.max(capacity, 1) * dsCount];
+    }
+
+    public void add(long time, double[] row, int offset) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2 * dsCount);
+        }
+        times[size] = time;
+        System.arraycopy(row, offset, values, size * dsCount, dsCount);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDsCount() {
+        return dsCount;
+    }
+
+    public long getTime(int row) {
+        return times[row];
+    }
+
+    public double getValue(int row, int col) {
+        return values[row * dsCount + col];
+    }
+
+    /**
+     * 按时间查找, 不存在时返回NaN
+     */
+    public double getValueAt(long time, int col) {
+        int row = Arrays.binarySearch(times, 0, size, time);
+        return row < 0 ? Double.NaN : values[row * dsCount + col];
+    }
+}
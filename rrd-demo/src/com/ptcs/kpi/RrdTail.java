@@ -0,0 +1,239 @@
+package com.ptcs.kpi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RRD增量订阅
+ *
+ * 仪表盘订阅一个RRD文件后, 每次写入提交新的时间点时只收到游标之后的新行, 不需要反复
+ * 查询整个时间窗口. 同一文件的所有订阅共用一个Feed: 写入线程只标记Feed并放入队列,
+ * 通知线程从所有订阅中最小的游标读取一次, 再按各自游标分发. 通知线程处理前的多次提交
+ * 合并为一次读取. 没有订阅的文件提交时只有一次Map查找.
+ * 行时间与rrdFetchBiz/rrdFetchHost的start/end含义一致(RRD行时间戳+60), 未知值为0.
+ */
+public class RrdTail {
+
+    private static final long STEP = 60;
+
+    /**
+     * 新行回调, 在通知线程中执行, 不应阻塞
+     */
+    public interface Listener {
+        /**
+         * @param sub  -- 订阅
+         * @param rows -- 本次读取的数据, 所有订阅共用, 只读
+         * @param from -- 该订阅的新行从from开始到rows.size()-1
+         */
+        void onRows(Subscription sub, RrdRows rows, int from);
+    }
+
+    /**
+     * 一个订阅, 游标为已收到的最后一行的时间
+     */
+    public class Subscription {
+        private final Feed feed;
+        private final Listener listener;
+        private volatile long cursor;
+
+        private Subscription(Feed feed, Listener listener, long cursor) {
+            this.feed = feed;
+            this.listener = listener;
+            this.cursor = cursor;
+        }
+
+        public String getPath() {
+            return feed.path;
+        }
+
+        public long getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @Title: close
+         * @Description: 取消订阅, 最后一个订阅取消后释放Feed
+         */
+        public void close() {
+            synchronized (feeds) {
+                feed.subs.remove(this);
+                if (feed.subs.isEmpty()) {
+                    feeds.remove(feed.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个RRD文件的订阅
+     */
+    private class Feed {
+        final String path;
+        final RrdEngine engine;
+        final List<Subscription> subs = new CopyOnWriteArrayList<Subscription>();
+        long committed = Long.MIN_VALUE;
+        boolean queued;
+
+        Feed(String path, RrdEngine engine) {
+            this.path = path;
+            this.engine = engine;
+        }
+
+        synchronized void commit(long time) {
+            if (time > committed) {
+                committed = time;
+            }
+            if (!queued) {
+                queued = true;
+                queue.add(this);
+            }
+        }
+    }
+
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<String, Feed>();
+    private final BlockingQueue<Feed> queue = new LinkedBlockingQueue<Feed>();
+    private final AtomicLong readCount = new AtomicLong();
+    private final int catchupRows;
+    private Thread notifier;
+
+    /**
+     * @param catchupRows -- 订阅时最多补发的行数
+     */
+    public RrdTail(int catchupRows) {
+        this.catchupRows = catchupRows;
+    }
+
+    /**
+     * @Title: subscribe
+     * @Description: 订阅RRD文件, 游标之后已写入的行在下一次通知时补发(最多catchupRows行)
+     * @param @param path    -- RRD文件
+     * @param @param engine  -- 读取该文件的存储引擎
+     * @param @param cursor  -- 已有数据的结束时间(时间戳[s]), 一般为上次rrdFetchBiz的end
+     * @param @param listener-- 新行回调
+     * @return 订阅
+     */
+    public Subscription subscribe(String path, RrdEngine engine, long cursor, Listener listener) {
+        Feed feed;
+        Subscription sub;
+        synchronized (feeds) {
+            feed = feeds.get(path);
+            if (feed == null) {
+                feed = new Feed(path, engine);
+                feeds.put(path, feed);
+            }
+            sub = new Subscription(feed, listener, cursor);
+            feed.subs.add(sub);
+            if (notifier == null) {
+                notifier = new Thread("rrd-tail") {
+                    public void run() {
+                        notifyLoop();
+                    }
+                };
+                notifier.setDaemon(true);
+                notifier.start();
+            }
+        }
+        long last = Long.MIN_VALUE;
+        try {
+            if (engine.exists(path)) {
+                last = engine.last(path);
+            }
+        } catch (RrdException e) {
+            e.printStackTrace();
+        }
+        if (last != Long.MIN_VALUE) {
+            sub.cursor = Math.max(cursor, last + STEP - catchupRows * STEP);
+            feed.commit(last);
+        }
+        return sub;
+    }
+
+    /**
+     * @Title: commit
+     * @Description: 写入线程在RRD更新成功后调用, 通知该文件的订阅
+     * @param @param path -- RRD文件
+     * @param @param time -- 最后写入的时间戳[s]
+     */
+    public void commit(String path, long time) {
+        Feed feed = feeds.get(path);
+        if (feed != null) {
+            feed.commit(time);
+        }
+    }
+
+    /**
+     * @return 为通知执行的读取次数
+     */
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    private void notifyLoop() {
+        while (true) {
+            try {
+                deliver(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deliver(Feed feed) throws RrdException {
+        long end;
+        synchronized (feed) {
+            feed.queued = false;
+            end = feed.committed;
+        }
+        long start = Long.MAX_VALUE;
+        for (Subscription sub : feed.subs) {
+            start = Math.min(start, sub.cursor);
+        }
+        // 订阅时文件尚未创建的游标没有被限制, 最多补发catchupRows行
+        start = Math.max(start, end + STEP - catchupRows * STEP);
+        // 所有订阅都已收到最新行
+        if (start >= end + STEP) {
+            return;
+        }
+        RrdRows data = feed.engine.fetch(feed.path, start - STEP, end, STEP);
+        readCount.incrementAndGet();
+        RrdRows rows = new RrdRows(data.getDsCount(), data.size());
+        double[] row = new double[data.getDsCount()];
+        for (int i = 0; i < data.size(); i++) {
+            long time = data.getTime(i) + STEP;
+            if (time <= start || data.getTime(i) > end) {
+                continue;
+            }
+            for (int j = 0; j < row.length; j++) {
+                double val = data.getValue(i, j);
+                row[j] = Double.isNaN(val) ? 0.0 : val;
+            }
+            rows.add(time, row, 0);
+        }
+        if (rows.size() == 0) {
+            return;
+        }
+        long last = rows.getTime(rows.size() - 1);
+        for (Subscription sub : feed.subs) {
+            int from = 0;
+            while (from < rows.size() && rows.getTime(from) <= sub.cursor) {
+                from++;
+            }
+            if (from == rows.size()) {
+                continue;
+            }
+            sub.cursor = last;
+            try {
+                sub.listener.onRows(sub, rows, from);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}